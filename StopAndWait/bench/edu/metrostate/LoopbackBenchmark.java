@@ -0,0 +1,179 @@
+package edu.metrostate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.DefaultParser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+
+/*
+ * Sends a file from a Sender to a Receiver over loopback, in the benchmark's JVM, for every combination of packet size,
+ * window size and SketchyServerSocket drop percentage (applied on both ends). Each operation is one whole transfer;
+ * besides its time JMH reports the throughput in MB/s of file data and the p50 and p99 of the per packet latency from
+ * first send to acknowledgement (retransmissions included), and with -prof gc the allocation rate and bytes per transfer.
+ * senderOptions are passed to the Sender, e.g. -v to measure the cost of the packet trace, which goes to a null stream,
+ * or -I delay=10,jitter=2 to simulate a longer path. Both ends use a fixed impairment seed, so runs are repeatable.
+ *
+ * Run with: gradle jmh -Pjmh='LoopbackBenchmark -p windowSize=64 -p mode=gbn'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	private static final String INITIAL_TIMEOUT = "200";		//A lost SYN costs one initial RTO, the default 1 s would swamp the lossy runs
+	private static final long SEED = 42;					//Every run drops and corrupts the same datagrams
+	private static int port = 40400;
+
+	@Param({ "512", "1472", "8192" })
+	public int packetSize;
+
+	@Param({ "1", "16", "64" })
+	public int windowSize;
+
+	@Param({ "0", "1", "5" })
+	public int dropPercentage;
+
+	@Param({ "sr" })
+	public String mode;
+
+	@Param({ "2048" })
+	public int fileKb;
+
+	@Param({ "" })
+	public String senderOptions;
+
+	private byte[] data;
+	private File in;
+	private File out;
+
+	/*
+	 * What one transfer measured, reported by JMH next to its time. Each iteration is one transfer, and JMH adds up
+	 * these counters over every iteration of every fork, so each iteration reports its share and the sum is the mean.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Transfer {
+		public double mbPerSecond;
+		public double p50Millis;
+		public double p99Millis;
+		private double share;
+
+		@Setup(Level.Iteration)
+		public void clear(BenchmarkParams benchmark, IterationParams iteration) {
+			mbPerSecond = 0;
+			p50Millis = 0;
+			p99Millis = 0;
+			share = 1.0 / (iteration.getCount() * Math.max(1, benchmark.getForks()));
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void writeFile() throws IOException {
+		in = File.createTempFile("loopback", ".in");
+		out = File.createTempFile("loopback", ".out");
+		data = new byte[fileKb * 1024];
+		new Random(42).nextBytes(data);
+		Files.write(in.toPath(), data);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() {
+		in.delete();
+		out.delete();
+	}
+
+	/*
+	 * Runs one Receiver and one Sender, each stream on its own thread, with System.out silenced until both are done
+	 */
+	@Benchmark
+	public void transfer(Transfer result) throws Exception {
+		String portArg = String.valueOf(port++);
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		Sender sender;
+		long nanos;
+		try {
+			Receiver receiver = new Receiver(new DefaultParser().parse(Receiver.options(), new String[] {
+					"-d", String.valueOf(dropPercentage), "-I", "seed=" + SEED, out.getPath(), "127.0.0.1", portArg }));
+			//The first value of an option counts, so the extra options go first to override these
+			List<String> senderArgs = new ArrayList<>(Arrays.asList(senderOptions.trim().split("\\s+")));
+			senderArgs.removeIf(String::isEmpty);
+			senderArgs.addAll(Arrays.asList("-s", String.valueOf(packetSize), "-w", String.valueOf(windowSize),
+					"-d", String.valueOf(dropPercentage), "-m", mode, "-t", INITIAL_TIMEOUT, "-I", "seed=" + SEED));
+			senderArgs.addAll(Arrays.asList(in.getPath(), "127.0.0.1", portArg));
+			sender = new Sender(new DefaultParser().parse(Sender.options(), senderArgs.toArray(new String[0])));
+
+			Thread receiving = new Thread(() -> {
+				try {
+					receiver.receive();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			receiving.start();
+
+			List<SenderStream> streams = sender.createStreams();
+			List<Thread> threads = new ArrayList<>();
+			for (SenderStream stream : streams) {
+				threads.add(new Thread(stream));
+			}
+
+			long start = System.nanoTime();
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			nanos = System.nanoTime() - start;
+
+			receiver.stop();
+			receiving.join();
+			sender.getLog().close();
+
+			for (SenderStream stream : streams) {
+				if (!stream.isFinished()) {
+					throw new IOException("Stream did not finish at size " + packetSize + ", window " + windowSize
+							+ ", drop " + dropPercentage + "%");
+				}
+			}
+		} finally {
+			System.setOut(console);
+		}
+		if (!Arrays.equals(data, Files.readAllBytes(out.toPath()))) {
+			throw new IOException("The received file differs from the one sent");
+		}
+
+		LatencyHistogram latencies = sender.getMetrics().getLatency();
+		result.mbPerSecond = data.length / 1e6 / (nanos / 1e9) * result.share;
+		result.p50Millis = latencies.percentile(0.50) / 1e6 * result.share;
+		result.p99Millis = latencies.percentile(0.99) / 1e6 * result.share;
+	}
+}
@@ -0,0 +1,171 @@
+package edu.metrostate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Measures the Packet codec on the send path (packing a data packet and an ACK) and the receive path (unpacking both),
+ * for heap and direct buffers and both checksums, and chunking a file into data packets the way SenderStream does:
+ * a copy out of the mapped file, then packData.
+ *
+ * None of these may allocate. Run under -prof gc, e.g. gradle jmh -Pjmh=PacketCodec, JMH reports gc.alloc.rate.norm
+ * in bytes/op; main() (gradle jmhAlloc) runs them with the GC profiler and fails if any of them allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+	private static final int PACKET_SIZE = 512;
+	private static final int PAYLOAD = PACKET_SIZE - Packet.HEADER_SIZE;
+	private static final int CHUNK_FILE_SIZE = 16 * 1024 * 1024;
+	private static final double ALLOCATION_LIMIT = 1.0;		//bytes/op, above JMH's own rounding noise
+
+	/*
+	 * A data packet over a heap or direct buffer, packed once so it can be unpacked
+	 */
+	@State(Scope.Thread)
+	public static class Data {
+		@Param({ "heap", "direct" })
+		public String buffer;
+
+		@Param({ "crc32c", "inet" })
+		public String checksum;
+
+		private Packet packet;
+		private int seqno;
+
+		@Setup
+		public void pack() {
+			ByteBuffer bytes = buffer.equals("direct") ? ByteBuffer.allocateDirect(PACKET_SIZE) : ByteBuffer.allocate(PACKET_SIZE);
+			for (int i = Packet.HEADER_SIZE; i < PACKET_SIZE; i++) {
+				bytes.put(i, (byte) i);
+			}
+			packet = new Packet(bytes, ChecksumType.parse(checksum));
+			packet.packData(0, 0, 0, PAYLOAD);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Ack {
+		private final Packet packet = new Packet(0, 0, 0L);
+		private int ackno;
+	}
+
+	/*
+	 * A file to chunk into packets, read through the same mapped reader the sender uses
+	 */
+	@State(Scope.Thread)
+	public static class Chunks {
+		private final Packet packet = new Packet(new byte[PACKET_SIZE], ChecksumType.CRC32C);
+		private final int chunks = CHUNK_FILE_SIZE / PAYLOAD;
+		private File file;
+		private MappedFileReader reader;
+		private int seqno;
+
+		@Setup(Level.Trial)
+		public void open() throws IOException {
+			file = File.createTempFile("chunk", ".bin");
+			Files.write(file.toPath(), new byte[CHUNK_FILE_SIZE]);
+			reader = new MappedFileReader(file);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			reader.close();
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public Packet packData(Data data) {
+		int seqno = data.seqno++;
+		return data.packet.packData(0, seqno, (long) seqno * PAYLOAD, PAYLOAD);
+	}
+
+	@Benchmark
+	public long unpackData(Data data) {
+		Packet packet = data.packet;
+		return packet.isValidPacket(PACKET_SIZE) ? packet.getSeqno() + packet.getDataLength() : -1;
+	}
+
+	@Benchmark
+	public Packet packAck(Ack ack) {
+		int ackno = ack.ackno++;
+		return ack.packet.packAck(0, ackno, ackno * 0x5DEECE66DL);
+	}
+
+	@Benchmark
+	public long unpackAck(Ack ack) {
+		Packet packet = ack.packet;
+		return packet.isValidPacket(Packet.ACK_SIZE) ? packet.getAckno() + packet.getSack() : -1;
+	}
+
+	@Benchmark
+	public Packet chunkFile(Chunks chunks) throws IOException {
+		int seqno = chunks.seqno++;
+		long position = (long) (seqno % chunks.chunks) * PAYLOAD;
+		Packet packet = chunks.packet;
+		return packet.packData(0, seqno, position, chunks.reader.read(position, packet.toByteArray(), Packet.HEADER_SIZE, PAYLOAD));
+	}
+
+	/*
+	 * Runs every benchmark above with the GC profiler and exits with 1 if any of them allocated more than
+	 * ALLOCATION_LIMIT bytes per operation. Takes the usual JMH options, e.g. -f 2 or -p buffer=direct.
+	 */
+	public static void main(String args[]) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(PacketCodecBenchmark.class.getName() + "\\.")
+				.addProfiler(GCProfiler.class)
+				.build();
+		Collection<RunResult> results = new Runner(options).run();
+
+		boolean allocates = false;
+		System.out.println();
+		for (RunResult run : results) {
+			Result<?> norm = run.getSecondaryResults().get("gc.alloc.rate.norm");
+			String name = run.getParams().getBenchmark() + run.getParams().getParamsKeys().stream()
+					.map(key -> " " + key + "=" + run.getParams().getParam(key)).reduce("", String::concat);
+			if (norm == null) {
+				System.out.println("No allocation measured for " + name);
+				allocates = true;
+			} else if (norm.getScore() > ALLOCATION_LIMIT) {
+				System.out.printf("%s allocates %.3f bytes/op%n", name, norm.getScore());
+				allocates = true;
+			} else {
+				System.out.printf("%s: %.3f bytes/op%n", name, norm.getScore());
+			}
+		}
+		if (allocates) {
+			System.exit(1);
+		}
+	}
+}
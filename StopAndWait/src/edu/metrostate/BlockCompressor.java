@@ -0,0 +1,148 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compresses the file into packets for a transfer that negotiated compression, and inflates them again on the other end.
+ *
+ * Every compressed packet is one complete zlib stream, so packets can still be lost, resent and reordered independently.
+ * Rather than squeezing a fixed slice of the file, the sender packs as much of the file as compresses into one payload,
+ * up to maxRawLength, so a file that compresses 5x takes about a fifth of the packets. How much to try is guessed from
+ * the ratio of the last packet, and a guess that turns out too big is cut down to what fits. A slice that doesn't shrink
+ * is sent as it is, without the COMPRESSED flag, and once the file stops compressing only every PROBE_INTERVAL-th packet
+ * tries again, so incompressible data costs next to no CPU.
+ *
+ * Both ends borrow their buffers from the BufferPool once per stream, and deflate at BEST_SPEED, which keeps up with
+ * the network rather than winning the last few percent of ratio.
+ */
+public class BlockCompressor {
+
+	private static final int MAX_RATIO = 16;				//A packet never covers more than this many payloads of the file
+	private static final int MAX_RAW = 256 * 1024;
+	private static final double HEADROOM = 0.95;			//Guess a little under the last ratio so the guess usually fits the first time
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int PROBE_INTERVAL = 64;
+
+	private final int payloadSize;
+	private final int maxRawLength;
+	private final Inflater inflater;
+	private final ByteBuffer raw;							//The slice of the file being compressed, or the inflated payload
+	private Deflater deflater;								//Only the sending end needs these, they are created by the first pack
+	private ByteBuffer compressed;							//Room for a whole slice compressed, to measure a guess that doesn't fit
+	private double ratio = MAX_RATIO;						//File bytes per payload byte of the last compressed packet
+	private int rawLength;
+	private boolean lastCompressed;
+	private int sincePlain;									//Plain packets since the last try at compressing
+	private long rawBytes;									//File bytes packed and payload bytes they took, first sends only
+	private long packedBytes;
+
+	public BlockCompressor(int pPayloadSize) {
+		this.payloadSize = pPayloadSize;
+		this.maxRawLength = maxRawLength(payloadSize);
+		this.inflater = new Inflater();
+		this.raw = BufferPool.SHARED.borrow(maxRawLength);
+	}
+
+	/*
+	 * The most file data one packet with this payload size can cover, the same on both ends
+	 */
+	public static int maxRawLength(int payloadSize) {
+		return Math.max(payloadSize, Math.min(payloadSize * MAX_RATIO, MAX_RAW));
+	}
+
+	/*
+	 * Packs the file from position on, but not past end, into dst at offset as one payload of at most payloadSize bytes.
+	 * Returns the payload length. getRawLength() is how much of the file it covers and isCompressed() says which way it went.
+	 */
+	public int pack(MappedFileReader reader, long position, long end, ByteBuffer dst, int offset) throws IOException {
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			compressed = BufferPool.SHARED.borrow(maxRawLength + maxRawLength / 8 + 64);
+		}
+		int plain = (int) Math.min(payloadSize, end - position);
+		long guess = (long) (payloadSize * ratio * HEADROOM);
+		if (guess <= payloadSize && ++sincePlain >= PROBE_INTERVAL) {
+			sincePlain = 0;
+			guess = 2L * payloadSize;
+		}
+		int length = (int) Math.min(end - position, Math.max(plain, Math.min(maxRawLength, guess)));
+		raw.clear();
+		length = reader.read(position, raw, 0, length);
+
+		for (int attempt = 0; attempt < MAX_ATTEMPTS && length > plain; attempt++) {
+			deflater.reset();
+			deflater.setInput(raw.limit(length).position(0));
+			deflater.finish();
+			compressed.clear();
+			int size = deflater.deflate(compressed);
+			if (!deflater.finished() || size >= length) {
+				ratio = 1;
+				break;
+			}
+			ratio = Math.min(MAX_RATIO, length / (double) size);
+			if (size <= payloadSize) {
+				dst.put(offset, compressed, 0, size);
+				return packed(length, size, true);
+			}
+			//Too much, try what the measured ratio says would fit
+			length = Math.max(plain, (int) (length * (double) payloadSize / size * HEADROOM));
+		}
+
+		dst.put(offset, raw, 0, plain);
+		return packed(plain, plain, false);
+	}
+
+	private int packed(int pRawLength, int size, boolean pCompressed) {
+		rawLength = pRawLength;
+		rawBytes += pRawLength;
+		packedBytes += size;
+		lastCompressed = pCompressed;
+		return size;
+	}
+
+	/*
+	 * Inflates a compressed payload, from its position to its limit. Returns the file data it holds, valid until the next call.
+	 */
+	public ByteBuffer inflate(ByteBuffer payload) throws DataFormatException {
+		inflater.reset();
+		inflater.setInput(payload);
+		raw.clear().limit(maxRawLength);
+		inflater.inflate(raw);
+		if (!inflater.finished()) {
+			throw new DataFormatException("Compressed packet is truncated or inflates to more than " + maxRawLength + " bytes");
+		}
+		return raw.flip();
+	}
+
+	public int getRawLength() {
+		return rawLength;
+	}
+
+	public boolean isCompressed() {
+		return lastCompressed;
+	}
+
+	/*
+	 * How the packets sent so far compressed, for the stream's closing summary
+	 */
+	public String summary() {
+		return String.format("Compressed %d KB of file into %d KB of payload (%.1fx)", rawBytes / 1000, packedBytes / 1000,
+				packedBytes == 0 ? 1.0 : rawBytes / (double) packedBytes);
+	}
+
+	/*
+	 * Frees the zlib memory now instead of whenever the collector gets to it, and gives the buffers back to the pool
+	 */
+	public void close() {
+		if (deflater != null) {
+			deflater.end();
+		}
+		inflater.end();
+		BufferPool.SHARED.release(raw);
+		BufferPool.SHARED.release(compressed);
+	}
+}
@@ -0,0 +1,151 @@
+package edu.metrostate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A bounded pool of direct buffers shared by every stream, session and transfer in the process. Datagram rings, packets,
+ * parity groups, compressor buffers and the write behind ring all borrow from it and give their buffers back when they
+ * close, so a long running receiver reuses the same off-heap memory for transfer after transfer instead of leaving
+ * each one's buffers to the collector, and the heap holds nothing bigger than a few headers.
+ *
+ * Sizes are rounded up to a power of two size class and a borrowed buffer's capacity is its class, so users go by its
+ * limit or their own lengths. Small classes are carved SLAB_BUFFERS at a time out of slabs of at most SLAB bytes, classes
+ * of SLAB and up are allocated one at a time. Each thread keeps up to THREAD_CACHE buffers of every small class to itself, so
+ * a stream that closes and opens again gets its buffers back without touching the shared lists, which are only locked
+ * when a thread's cache is empty or full. The shared lists never hold more than limit bytes, past that a returned buffer
+ * is dropped for the collector as if there were no pool, so a burst of transfers doesn't pin its peak memory forever.
+ *
+ * borrowed minus returned is the number of buffers still out, which is a leak once everything is closed; summary()
+ * reports it along with the hit rate. Buffers in the cache of a thread that has ended are simply left to the collector.
+ */
+public class BufferPool {
+
+	public static final BufferPool SHARED = new BufferPool(256L * 1024 * 1024);
+
+	private static final int MIN_SHIFT = 6;				//64 bytes, the smallest class
+	private static final int MAX_SHIFT = 30;
+	private static final int SLAB = 1024 * 1024;
+	private static final int SLAB_BUFFERS = 32;
+	private static final int THREAD_CACHE = 16;
+	private static final int CACHED_SHIFT = 16;			//Only classes up to 64 KB are cached per thread
+
+	private final long limit;
+	private final ArrayDeque<ByteBuffer>[] free;			//Shared free lists by class, each locked on itself
+	private final ThreadLocal<ArrayDeque<ByteBuffer>[]> cache;
+	private final AtomicLong retainedBytes = new AtomicLong();	//Bytes on the shared free lists
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong returned = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(long pLimit) {
+		this.limit = pLimit;
+		this.free = new ArrayDeque[MAX_SHIFT + 1];
+		for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+			free[i] = new ArrayDeque<>();
+		}
+		this.cache = ThreadLocal.withInitial(() -> new ArrayDeque[CACHED_SHIFT + 1]);
+	}
+
+	/*
+	 * A cleared direct buffer of at least size bytes, limited to size. Its contents are whatever the last borrower left.
+	 */
+	public ByteBuffer borrow(int size) {
+		int shift = shift(size);
+		borrowed.incrementAndGet();
+		ByteBuffer buffer = null;
+
+		ArrayDeque<ByteBuffer> local = shift <= CACHED_SHIFT ? cache.get()[shift] : null;
+		if (local != null) {
+			buffer = local.poll();
+		}
+		if (buffer == null) {
+			synchronized (free[shift]) {
+				buffer = free[shift].poll();
+			}
+			if (buffer != null) {
+				retainedBytes.addAndGet(-buffer.capacity());
+			}
+		}
+		if (buffer != null) {
+			hits.incrementAndGet();
+		} else {
+			buffer = allocate(shift);
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/*
+	 * Gives a buffer from borrow() back. The caller must not touch it afterwards. null is ignored, so a close() that runs
+	 * before everything was borrowed can hand back whatever it has.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		returned.incrementAndGet();
+		int shift = Integer.numberOfTrailingZeros(buffer.capacity());
+		if (shift <= CACHED_SHIFT) {
+			ArrayDeque<ByteBuffer>[] classes = cache.get();
+			if (classes[shift] == null) {
+				classes[shift] = new ArrayDeque<>(THREAD_CACHE);
+			}
+			if (classes[shift].size() < THREAD_CACHE) {
+				classes[shift].push(buffer);
+				return;
+			}
+		}
+		retain(shift, buffer);
+	}
+
+	/*
+	 * Puts a buffer on its shared free list, or drops it if the lists already hold limit bytes
+	 */
+	private void retain(int shift, ByteBuffer buffer) {
+		if (retainedBytes.addAndGet(buffer.capacity()) > limit) {
+			retainedBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		synchronized (free[shift]) {
+			free[shift].push(buffer);
+		}
+	}
+
+	/*
+	 * A new buffer of the class, carved from a new slab with the rest of the slab going on the free list
+	 */
+	private ByteBuffer allocate(int shift) {
+		int size = 1 << shift;
+		int slab = Math.max(size, Math.min(SLAB, size * SLAB_BUFFERS));
+		ByteBuffer memory = ByteBuffer.allocateDirect(slab);
+		allocatedBytes.addAndGet(slab);
+		for (int offset = size; offset < slab; offset += size) {
+			retain(shift, memory.slice(offset, size));
+		}
+		return slab == size ? memory : memory.slice(0, size);
+	}
+
+	private static int shift(int size) {
+		if (size < 1 || size > 1 << MAX_SHIFT) {
+			throw new IllegalArgumentException("Can't pool a buffer of " + size + " bytes");
+		}
+		return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+	}
+
+	public long getOutstanding() {
+		return borrowed.get() - returned.get();
+	}
+
+	/*
+	 * How the pool did, for the closing summary of the sender or receiver
+	 */
+	public String summary() {
+		long count = borrowed.get();
+		return String.format("Buffer pool: %d borrowed, %.1f%% reused, %d KB allocated, %d KB free, %d still out",
+				count, count == 0 ? 0 : hits.get() * 100.0 / count, allocatedBytes.get() / 1024, retainedBytes.get() / 1024, getOutstanding());
+	}
+}
@@ -0,0 +1,52 @@
+package edu.metrostate;
+
+import java.util.zip.Checksum;
+
+/*
+ * The integrity checks a packet can carry. Both ends must use the same one.
+ */
+public enum ChecksumType {
+
+	/*
+	 * CRC-32C (Castagnoli), hardware accelerated on current x86 and ARM JVMs
+	 */
+	CRC32C("crc32c"),
+
+	/*
+	 * The 16 bit Internet checksum, for compatibility with tools that expect it
+	 */
+	INTERNET("inet");
+
+	private final String name;
+
+	private ChecksumType(String pName) {
+		this.name = pName;
+	}
+
+	/*
+	 * Parses the command line name of a checksum (crc32c or inet)
+	 */
+	public static ChecksumType parse(String pName) {
+		for (ChecksumType type : values()) {
+			if (type.name.equalsIgnoreCase(pName)) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException("Unknown checksum: " + pName + " (expected crc32c or inet)");
+	}
+
+	/*
+	 * Creates a new checksum of this type. Checksums are stateful, so each thread needs its own.
+	 */
+	public Checksum newChecksum() {
+		if (this == CRC32C) {
+			return new java.util.zip.CRC32C();
+		}
+		return new InternetChecksum();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.metrostate;
+
+/*
+ * The congestion controllers the Sender can run
+ */
+public enum CongestionAlgorithm {
+
+	/*
+	 * CUBIC (RFC 8312), the default
+	 */
+	CUBIC("cubic"),
+
+	/*
+	 * AIMD as in TCP Reno
+	 */
+	RENO("reno"),
+
+	/*
+	 * No congestion control: the whole window is sent back to back, as before
+	 */
+	NONE("none");
+
+	private final String name;
+
+	private CongestionAlgorithm(String pName) {
+		this.name = pName;
+	}
+
+	/*
+	 * Parses the command line name of an algorithm (cubic, reno or none)
+	 */
+	public static CongestionAlgorithm parse(String pName) {
+		for (CongestionAlgorithm algorithm : values()) {
+			if (algorithm.name.equalsIgnoreCase(pName)) {
+				return algorithm;
+			}
+		}
+		throw new IllegalArgumentException("Unknown congestion control: " + pName + " (expected cubic, reno or none)");
+	}
+
+	/*
+	 * Creates a controller for one transfer whose window never exceeds maxWindow
+	 */
+	public CongestionControl newController(int maxWindow) {
+		switch (this) {
+		case CUBIC:
+			return new CubicCongestionControl(maxWindow);
+		case RENO:
+			return new RenoCongestionControl(maxWindow);
+		default:
+			return new FixedWindow(maxWindow);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/*
+	 * Always allows the full window
+	 */
+	private static class FixedWindow implements CongestionControl {
+		private final int window;
+
+		FixedWindow(int pWindow) {
+			this.window = pWindow;
+		}
+
+		public void onAck(int packets, long now, long srtt) {
+		}
+
+		public void onLoss(long now) {
+		}
+
+		public void onTimeout(long now) {
+		}
+
+		public int getWindow() {
+			return window;
+		}
+
+		public boolean inSlowStart() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package edu.metrostate;
+
+/*
+ * Decides how many packets the Sender may have in flight, within its fixed WINDOW_SIZE.
+ * Windows are counted in packets and times are System.nanoTime() values.
+ * Only called from the Sender's event loop thread.
+ */
+public interface CongestionControl {
+
+	/*
+	 * Packets that were newly acknowledged, cumulatively or by SACK. srtt is 0 before the first RTT sample.
+	 */
+	void onAck(int packets, long now, long srtt);
+
+	/*
+	 * A loss found by duplicate ACKs or a SACK hole. The Sender reports at most one per window of data.
+	 */
+	void onLoss(long now);
+
+	/*
+	 * A retransmission timer expired
+	 */
+	void onTimeout(long now);
+
+	/*
+	 * The congestion window in packets, always at least 1
+	 */
+	int getWindow();
+
+	boolean inSlowStart();
+}
@@ -0,0 +1,81 @@
+package edu.metrostate;
+
+/*
+ * CUBIC congestion control (RFC 8312). After a loss the window grows along a cubic curve that is flat
+ * around the window where the loss happened (wMax) and steep away from it, so it recovers quickly on
+ * long fat paths without pushing hard at the point where the network last gave up.
+ * Slow start and timeouts work as in Reno.
+ */
+public class CubicCongestionControl extends RenoCongestionControl {
+
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;					//Multiplicative decrease factor
+
+	private double wMax;									//Window at the last loss
+	private double k;										//Seconds from the start of the epoch until the curve reaches wMax again
+	private double wEst;									//What Reno would have by now, CUBIC never does worse
+	private long epochStart = -1;							//When the current congestion avoidance epoch began, -1 until the first ACK after a loss
+
+	public CubicCongestionControl(int pMaxWindow) {
+		super(pMaxWindow);
+	}
+
+	@Override
+	public void onAck(int packets, long now, long srtt) {
+		if (inSlowStart()) {
+			super.onAck(packets, now, srtt);
+			return;
+		}
+
+		if (epochStart < 0) {
+			epochStart = now;
+			if (cwnd < wMax) {
+				k = Math.cbrt((wMax - cwnd) / C);
+			} else {
+				k = 0;
+				wMax = cwnd;
+			}
+			wEst = cwnd;
+		}
+
+		//Aim for where the curve will be one RTT from now, but never more than half a window ahead
+		double t = (now + srtt - epochStart) / 1e9;
+		double target = wMax + C * Math.pow(t - k, 3);
+		target = Math.min(Math.max(target, cwnd), cwnd * 1.5);
+
+		if (target > cwnd) {
+			cwnd += (target - cwnd) / cwnd * packets;
+		} else {
+			cwnd += 0.01 * packets / cwnd;
+		}
+
+		wEst += 3 * (1 - BETA) / (1 + BETA) * packets / cwnd;
+		cwnd = Math.min(Math.max(cwnd, wEst), maxWindow);
+	}
+
+	@Override
+	public void onLoss(long now) {
+		reduce();
+		cwnd = ssthresh;
+	}
+
+	@Override
+	public void onTimeout(long now) {
+		reduce();
+		cwnd = 1;
+	}
+
+	/*
+	 * Remembers the window the loss happened at and sets ssthresh. If the window hadn't even recovered to the
+	 * previous wMax, other flows are probably taking a share, so wMax is lowered further to make room (fast convergence).
+	 */
+	private void reduce() {
+		epochStart = -1;
+		if (cwnd < wMax) {
+			wMax = cwnd * (1 + BETA) / 2;
+		} else {
+			wMax = cwnd;
+		}
+		ssthresh = Math.max(cwnd * BETA, MIN_SSTHRESH);
+	}
+}
@@ -0,0 +1,180 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * Batches the datagrams of one channel so the event loop sends and receives in bursts.
+ *
+ * Sends are copied into a ring of direct buffers from the BufferPool and go out together when the ring fills up or the
+ * event loop finishes an iteration, so a window refill, a Go-Back-N resend or a burst of ACKs is
+ * written back to back. Receives fill the same kind of ring with up to one batch per wakeup.
+ * The JDK has no sendmmsg/recvmmsg or UDP GSO, so each datagram is still one syscall; the
+ * batching keeps those syscalls together and bounds how long one busy channel can hold the loop.
+ */
+public class DatagramBatcher {
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private final DatagramChannel channel;
+	private final ByteBuffer[] sendBuffers;
+	private final SocketAddress[] sendTargets;
+	private final ByteBuffer[] receiveBuffers;
+	private final int receiveBufferSize;
+	private final SocketAddress[] receiveSources;
+	private final int[] receiveLengths;
+	private int pending;
+	private long packetsSent;
+	private long packetsReceived;
+	private long sendsFailed;
+	private long flushes;
+
+	/*
+	 * Each direction has its own buffer size, the ACK side of a transfer only ever needs room for ACKs.
+	 * The socket buffers are raised to hold at least one full batch, which matters once datagrams get large.
+	 */
+	public DatagramBatcher(DatagramChannel pChannel, int batchSize, int sendBufferSize, int pReceiveBufferSize) throws IOException {
+		this.channel = pChannel;
+		this.receiveBufferSize = pReceiveBufferSize;
+		this.sendBuffers = new ByteBuffer[batchSize];
+		this.sendTargets = new SocketAddress[batchSize];
+		this.receiveBuffers = new ByteBuffer[batchSize];
+		this.receiveSources = new SocketAddress[batchSize];
+		this.receiveLengths = new int[batchSize];
+
+		for (int i = 0; i < batchSize; i++) {
+			sendBuffers[i] = BufferPool.SHARED.borrow(sendBufferSize);
+			receiveBuffers[i] = BufferPool.SHARED.borrow(receiveBufferSize);
+		}
+
+		//The kernel caps these at net.core.wmem_max and rmem_max
+		if (channel.getOption(StandardSocketOptions.SO_SNDBUF) < batchSize * sendBufferSize) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, batchSize * sendBufferSize);
+		}
+		if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < batchSize * receiveBufferSize) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, batchSize * receiveBufferSize);
+		}
+	}
+
+	/*
+	 * Copies the first length bytes of the packet into the send ring. The packet can be changed or reused as soon as this returns.
+	 */
+	public void queue(Packet packet, int length, SocketAddress target) throws IOException {
+		ByteBuffer src = packet.getBuffer();
+		src.limit(length).position(0);
+		queue(src, target);
+		src.clear();
+	}
+
+	/*
+	 * Copies the remaining bytes of src into the send ring, leaving src's position at its limit
+	 */
+	public void queue(ByteBuffer src, SocketAddress target) throws IOException {
+		if (pending == sendBuffers.length) {
+			flush();
+		}
+
+		ByteBuffer dst = sendBuffers[pending];
+		dst.clear();
+		dst.put(src).flip();
+		sendTargets[pending++] = target;
+	}
+
+	/*
+	 * Sends everything queued. A datagram the socket has no room for is dropped, like any other loss.
+	 */
+	public void flush() throws IOException {
+		if (pending == 0) {
+			return;
+		}
+		for (int i = 0; i < pending; i++) {
+			if (channel.send(sendBuffers[i], sendTargets[i]) > 0) {
+				packetsSent++;
+			} else {
+				sendsFailed++;
+			}
+			sendTargets[i] = null;
+		}
+		pending = 0;
+		flushes++;
+	}
+
+	/*
+	 * Receives up to one batch of waiting datagrams. Returns how many arrived; they stay valid until the next call.
+	 */
+	public int receive() throws IOException {
+		int count = 0;
+
+		while (count < receiveBuffers.length) {
+			ByteBuffer buffer = receiveBuffers[count];
+			buffer.clear().limit(receiveBufferSize);		//The pool's buffer may be bigger, a longer datagram is still cut short
+			SocketAddress from = channel.receive(buffer);
+			if (from == null) {
+				break;
+			}
+			receiveSources[count] = from;
+			receiveLengths[count] = buffer.position();
+			buffer.clear();
+			count++;
+		}
+		packetsReceived += count;
+		return count;
+	}
+
+	/*
+	 * Gives the rings back to the pool. Nothing may be queued or received afterwards.
+	 */
+	public void close() {
+		for (int i = 0; i < sendBuffers.length; i++) {
+			BufferPool.SHARED.release(sendBuffers[i]);
+			BufferPool.SHARED.release(receiveBuffers[i]);
+			sendBuffers[i] = null;
+			receiveBuffers[i] = null;
+		}
+	}
+
+	/*
+	 * The buffers datagrams are received into, for building one Packet view per slot
+	 */
+	public ByteBuffer getReceiveBuffer(int i) {
+		return receiveBuffers[i];
+	}
+
+	public SocketAddress getSource(int i) {
+		return receiveSources[i];
+	}
+
+	public int getLength(int i) {
+		return receiveLengths[i];
+	}
+
+	public int getBatchSize() {
+		return receiveBuffers.length;
+	}
+
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	/*
+	 * Returns a one line summary of the traffic, with packets per second of CPU time spent by the event loop thread
+	 */
+	public String summary(long cpuNanos) {
+		long packets = packetsSent + packetsReceived;
+		double perCore = cpuNanos > 0 ? packets / (cpuNanos / 1e9) : 0;
+		double perFlush = flushes > 0 ? packetsSent / (double) flushes : 0;
+		return String.format("Packets: %d sent, %d received, %d send failures, %.1f per burst, %.0f pkt/s per core",
+				packetsSent, packetsReceived, sendsFailed, perFlush, perCore);
+	}
+}
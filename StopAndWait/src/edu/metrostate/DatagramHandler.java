@@ -0,0 +1,11 @@
+package edu.metrostate;
+
+import java.io.IOException;
+
+/*
+ * Called by the EventLoop when a registered DatagramChannel has datagrams waiting.
+ * Handlers should drain the channel, since the loop will not call again until more arrive.
+ */
+public interface DatagramHandler {
+	void onReadable() throws IOException;
+}
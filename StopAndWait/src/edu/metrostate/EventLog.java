@@ -0,0 +1,250 @@
+package edu.metrostate;
+
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The per packet trace, off unless asked for. Events are written into a fixed ring of preallocated slots
+ * as a few longs and constant strings, so logging a packet costs no formatting, no allocation and no console I/O
+ * on the thread that sends it. A daemon thread formats the events and writes them out in order.
+ *
+ * Any number of threads may log. A producer claims a slot with a CAS on head and publishes it by writing the slot's
+ * sequence, the writer thread follows behind tail. When the writer falls a whole ring behind, new events are
+ * counted and dropped rather than blocking the data path.
+ *
+ * Connection level messages also go through the ring when it is on, so they stay in order with the trace.
+ */
+public class EventLog {
+
+	private static final int RING_SIZE = 1 << 16;
+	private static final int MASK = RING_SIZE - 1;
+	private static final long IDLE_PARK = 1_000_000L;		//The writer checks for new events every ms when the ring is empty
+	private static final int TRACE_BUFFER = 64 * 1024;
+
+	private enum Kind { MESSAGE, PACKET, ACK_RECEIVED, CONTROL, TIMEOUT, ACK_SENT, RECEIVED }
+
+	private final boolean enabled;
+	private final PrintStream out;
+	private final PrintStream trace;						//Buffers the writer's output over out, flushed whenever the ring runs empty
+	private final Slot[] ring;
+	private final AtomicLong head = new AtomicLong();		//Next sequence to claim
+	private volatile long tail;								//Next sequence the writer will print
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	/*
+	 * A disabled log prints messages straight to out and ignores the per packet events
+	 */
+	public EventLog(boolean pEnabled, PrintStream pOut) {
+		this.enabled = pEnabled;
+		this.out = pOut;
+		if (enabled) {
+			ring = new Slot[RING_SIZE];
+			for (int i = 0; i < RING_SIZE; i++) {
+				ring[i] = new Slot(i - RING_SIZE);
+			}
+			trace = new PrintStream(new BufferedOutputStream(out, TRACE_BUFFER), false);
+			writer = new Thread(this::drain, "event-log");
+			writer.setDaemon(true);
+			writer.start();
+		} else {
+			ring = null;
+			trace = null;
+			writer = null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/*
+	 * A connection level line, printed whether or not the trace is on
+	 */
+	public void message(String text) {
+		if (enabled) {
+			publish(Kind.MESSAGE, text, null, null, 0, 0, 0);
+		} else {
+			out.println(text);
+		}
+	}
+
+	/*
+	 * status1 seqno start:end time status2, a data packet leaving the sender
+	 */
+	public void packet(String status1, long seqno, long start, long end, String status2) {
+		if (enabled) {
+			publish(Kind.PACKET, status1, status2, null, seqno, start, end);
+		}
+	}
+
+	/*
+	 * AckRcvd ackno status, an ACK arriving at the sender
+	 */
+	public void ackReceived(long ackno, String status) {
+		if (enabled) {
+			publish(Kind.ACK_RECEIVED, status, null, null, ackno, 0, 0);
+		}
+	}
+
+	/*
+	 * status1 name time status2, a SYN, FIN or their answers leaving either end
+	 */
+	public void control(String status1, String name, String status2) {
+		if (enabled) {
+			publish(Kind.CONTROL, status1, status2, name, 0, 0, 0);
+		}
+	}
+
+	/*
+	 * TIMEOUT seqno RTO rto ms CWND cwnd
+	 */
+	public void timeout(long seqno, long rtoMillis, long cwnd) {
+		if (enabled) {
+			publish(Kind.TIMEOUT, null, null, null, seqno, rtoMillis, cwnd);
+		}
+	}
+
+	/*
+	 * status1 ackno time status2, an ACK leaving the receiver
+	 */
+	public void ackSent(String status1, long ackno, String status2) {
+		if (enabled) {
+			publish(Kind.ACK_SENT, status1, status2, null, ackno, 0, 0);
+		}
+	}
+
+	/*
+	 * status1 time seqno status2, a data packet the receiver did not take in order
+	 */
+	public void received(String status1, long seqno, String status2) {
+		if (enabled) {
+			publish(Kind.RECEIVED, status1, status2, null, seqno, 0, 0);
+		}
+	}
+
+	/*
+	 * Waits until everything logged so far has been printed, then stops the writer. Reports the events that had to be dropped.
+	 */
+	public void close() {
+		if (enabled && !closed) {
+			long end = head.get();
+			while (tail < end && writer.isAlive()) {
+				LockSupport.parkNanos(IDLE_PARK);
+			}
+			closed = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (dropped.get() > 0) {
+				out.println(dropped.get() + " trace events dropped, the console could not keep up");
+			}
+			out.flush();
+		}
+	}
+
+	/*
+	 * Claims the next slot and fills it, or drops the event if the writer is a whole ring behind.
+	 * The time is taken here so it is when the event happened, not when it was printed.
+	 */
+	private void publish(Kind kind, String text1, String text2, String text3, long a, long b, long c) {
+		long sequence;
+		do {
+			sequence = head.get();
+			if (sequence - tail >= RING_SIZE) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+
+		Slot slot = ring[(int) (sequence & MASK)];
+		slot.kind = kind;
+		slot.time = System.currentTimeMillis();
+		slot.text1 = text1;
+		slot.text2 = text2;
+		slot.text3 = text3;
+		slot.a = a;
+		slot.b = b;
+		slot.c = c;
+		slot.sequence = sequence;
+	}
+
+	/*
+	 * The writer thread: prints published slots in sequence order, flushing whenever it runs out of events
+	 */
+	private void drain() {
+		StringBuilder line = new StringBuilder(128);
+		long next = 0;
+
+		while (true) {
+			Slot slot = ring[(int) (next & MASK)];
+			if (slot.sequence == next) {
+				format(slot, line);
+				trace.append(line).println();
+				line.setLength(0);
+				slot.text1 = null;
+				slot.text2 = null;
+				slot.text3 = null;
+				tail = ++next;
+			} else if (closed && next >= head.get()) {
+				trace.flush();
+				return;
+			} else {
+				trace.flush();
+				LockSupport.parkNanos(IDLE_PARK);
+			}
+		}
+	}
+
+	private static void format(Slot slot, StringBuilder line) {
+		switch (slot.kind) {
+		case MESSAGE:
+			line.append(slot.text1);
+			break;
+		case PACKET:
+			line.append(slot.text1).append(' ').append(slot.a).append(' ').append(slot.b).append(':').append(slot.c)
+					.append(' ').append(slot.time).append(' ').append(slot.text2);
+			break;
+		case ACK_RECEIVED:
+			line.append("AckRcvd ").append(slot.a).append(' ').append(slot.text1);
+			break;
+		case CONTROL:
+			line.append(slot.text1).append(' ').append(slot.text3).append(' ').append(slot.time).append(' ').append(slot.text2);
+			break;
+		case ACK_SENT:
+			line.append(slot.text1).append(' ').append(slot.a).append(' ').append(slot.time).append(' ').append(slot.text2);
+			break;
+		case TIMEOUT:
+			line.append("TIMEOUT ").append(slot.a).append(" RTO ").append(slot.b).append("ms CWND ").append(slot.c);
+			break;
+		case RECEIVED:
+			line.append(slot.text1).append(' ').append(slot.time).append(' ').append(slot.a).append(' ').append(slot.text2);
+			break;
+		}
+	}
+
+	/*
+	 * One event. The fields are written before the volatile sequence, which publishes them to the writer.
+	 */
+	private static final class Slot {
+		private volatile long sequence;
+		private Kind kind;
+		private long time;
+		private String text1;
+		private String text2;
+		private String text3;
+		private long a;
+		private long b;
+		private long c;
+
+		private Slot(long pSequence) {
+			sequence = pSequence;
+		}
+	}
+}
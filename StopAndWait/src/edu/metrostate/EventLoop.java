@@ -0,0 +1,158 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/*
+ * A single threaded event loop over a Selector. Any number of non-blocking DatagramChannels
+ * (senders, receivers, sessions) can be registered on it, and retransmission deadlines live
+ * on its TimerWheel, so one thread drives every packet in flight without blocking in a syscall.
+ * Other threads hand work to the loop by raising a Signal, which wakes the selector.
+ */
+public class EventLoop {
+
+	private static final long TICK = 1_000_000L;			//1 ms timer resolution
+	private static final int BUCKETS = 1024;
+
+	private final Selector selector;
+	private final TimerWheel timers;
+	private final List<DatagramBatcher> batchers = new ArrayList<>();
+	private final List<Signal> signals = new ArrayList<>();
+	private volatile boolean running;
+	private long cpuNanos;
+
+	public EventLoop() throws IOException {
+		selector = Selector.open();
+		timers = new TimerWheel(TICK, BUCKETS);
+	}
+
+	/*
+	 * Switches the channel to non-blocking mode and calls the handler whenever datagrams arrive on it
+	 */
+	public void register(DatagramChannel channel, DatagramHandler handler) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, handler);
+	}
+
+	/*
+	 * Flushes the batcher's queued sends at the end of every loop iteration, after all handlers and timers have run
+	 */
+	public void addBatcher(DatagramBatcher batcher) {
+		batchers.add(batcher);
+	}
+
+	/*
+	 * Creates a signal that runs handler on the loop thread once it has been raised. Signals must be created before run().
+	 */
+	public Signal newSignal(Runnable handler) {
+		Signal signal = new Signal(handler);
+		signals.add(signal);
+		return signal;
+	}
+
+	public TimerWheel getTimers() {
+		return timers;
+	}
+
+	/*
+	 * Runs on the calling thread until stop() is called
+	 */
+	public void run() throws IOException {
+		long cpuStart = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+		running = true;
+
+		try {
+			while (running) {
+				long wait = timers.nanosToNextExpiry(System.nanoTime());
+
+				if (wait < 0) {
+					selector.select(this::dispatch);
+				} else if (wait == 0) {
+					selector.selectNow(this::dispatch);
+				} else {
+					selector.select(this::dispatch, (wait + 999_999) / 1_000_000);
+				}
+
+				timers.expire(System.nanoTime());
+
+				for (int i = 0; i < signals.size(); i++) {
+					signals.get(i).dispatch();
+				}
+
+				for (int i = 0; i < batchers.size(); i++) {
+					batchers.get(i).flush();
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			cpuNanos += ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - cpuStart;
+		}
+	}
+
+	/*
+	 * The CPU time the loop thread has spent inside run()
+	 */
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	/*
+	 * Makes run() return after the current iteration. Safe to call from any thread.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/*
+	 * Closes the selector. Registered channels are left to their owners.
+	 */
+	public void close() throws IOException {
+		selector.close();
+	}
+
+	/*
+	 * Raised from any thread, handled on the loop thread in the loop's next iteration. Raising an already raised
+	 * signal does nothing, so the selector is woken at most once per iteration however often it is raised.
+	 */
+	public final class Signal {
+		private final Runnable handler;
+		private volatile boolean raised;
+
+		private Signal(Runnable pHandler) {
+			handler = pHandler;
+		}
+
+		public void raise() {
+			if (!raised) {
+				raised = true;
+				selector.wakeup();
+			}
+		}
+
+		/*
+		 * Clears the signal before calling the handler, so a raise while the handler runs isn't lost
+		 */
+		private void dispatch() {
+			if (raised) {
+				raised = false;
+				handler.run();
+			}
+		}
+	}
+
+	private void dispatch(SelectionKey key) {
+		try {
+			((DatagramHandler) key.attachment()).onReadable();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
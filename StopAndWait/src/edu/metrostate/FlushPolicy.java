@@ -0,0 +1,115 @@
+package edu.metrostate;
+
+/*
+ * When the receiver forces the data it has written to disk, given on the command line as fin, none,
+ * or a size and/or an interval separated by a comma, e.g. 64m or 500ms or 64m,500ms
+ *
+ *   none			never, the operating system writes the file back in its own time (the default)
+ *   fin			only once the transfer is complete
+ *   N[k|m|g]		after every N bytes written, with an optional KB, MB or GB suffix
+ *   Tms			every T ms while anything written since the last force is still unforced
+ *
+ * A size or an interval also forces once the transfer is complete. Whatever the policy, a resumable transfer forces
+ * at least every TransferFile.JOURNAL_SYNC ms and when it stops incomplete, since its journal may only list blocks that
+ * are safely on disk.
+ */
+public class FlushPolicy {
+
+	public static final FlushPolicy NONE = new FlushPolicy(0, 0, false, "none");
+	public static final FlushPolicy FIN = new FlushPolicy(0, 0, true, "fin");
+
+	private final long bytes;								//0 for no size limit
+	private final long interval;							//Nanoseconds, 0 for no interval
+	private final boolean atEnd;
+	private final String spec;
+
+	private FlushPolicy(long pBytes, long pInterval, boolean pAtEnd, String pSpec) {
+		this.bytes = pBytes;
+		this.interval = pInterval;
+		this.atEnd = pAtEnd;
+		this.spec = pSpec;
+	}
+
+	/*
+	 * Parses the command line form of a policy
+	 */
+	public static FlushPolicy parse(String spec) {
+		String lower = spec.trim().toLowerCase();
+		if (lower.equals("fin")) {
+			return FIN;
+		} else if (lower.equals("none")) {
+			return NONE;
+		}
+
+		long bytes = 0;
+		long interval = 0;
+		for (String part : lower.split(",")) {
+			part = part.trim();
+			if (part.endsWith("ms")) {
+				long ms = Long.parseLong(part.substring(0, part.length() - 2));
+				if (ms < 1) {
+					throw new IllegalArgumentException("fsync interval must be at least 1 ms, not " + part);
+				}
+				interval = ms * 1_000_000L;
+			} else {
+				bytes = size(part);
+			}
+		}
+		return new FlushPolicy(bytes, interval, true, lower);
+	}
+
+	private static long size(String value) {
+		long scale = 1;
+		if (value.endsWith("k")) {
+			scale = 1024L;
+		} else if (value.endsWith("m")) {
+			scale = 1024L * 1024;
+		} else if (value.endsWith("g")) {
+			scale = 1024L * 1024 * 1024;
+		}
+		if (scale > 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		long size;
+		try {
+			size = Long.parseLong(value) * scale;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("fsync takes fin, none, a size like 64m or an interval like 500ms, not " + value);
+		}
+		if (size < 1) {
+			throw new IllegalArgumentException("fsync size must be at least 1 byte, not " + value);
+		}
+		return size;
+	}
+
+	/*
+	 * Whether this many bytes written since the last force, unforced for this long (in nanoseconds), should be forced now.
+	 * minInterval is the longest a caller allows between forces whatever the policy, 0 if it doesn't care.
+	 */
+	public boolean due(long unforcedBytes, long unforcedNanos, long minInterval) {
+		if (unforcedBytes == 0) {
+			return false;
+		}
+		return (bytes > 0 && unforcedBytes >= bytes) || (interval > 0 && unforcedNanos >= interval)
+				|| (minInterval > 0 && unforcedNanos >= minInterval);
+	}
+
+	/*
+	 * The longest unforced data may wait under this policy and minInterval, 0 if only the size or the end of the transfer forces it
+	 */
+	public long maxWait(long minInterval) {
+		if (interval > 0 && minInterval > 0) {
+			return Math.min(interval, minInterval);
+		}
+		return Math.max(interval, minInterval);
+	}
+
+	public boolean forcesAtEnd() {
+		return atEnd;
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+}
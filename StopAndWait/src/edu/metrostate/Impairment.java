@@ -0,0 +1,222 @@
+package edu.metrostate;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * The network conditions SketchyServerSocket imposes on the datagrams it sends, given on the command line as
+ * comma separated key=value pairs, e.g. drop=1,corrupt=0.5,delay=20,jitter=5,burst=1:30,rate=10m,seed=7
+ *
+ *   drop, corrupt		percent of datagrams lost or sent with one bit flipped
+ *   dup				percent of datagrams sent twice
+ *   reorder			percent of datagrams held back REORDER_HOLD ms longer, so the ones after them overtake
+ *   delay, jitter		ms of one way delay, plus or minus up to jitter ms drawn uniformly for each datagram
+ *   burst=p:r[:loss]	Gilbert-Elliott burst loss: p percent chance per datagram of entering the bad state, r percent
+ *						of leaving it, and loss percent of datagrams lost while in it (default 100)
+ *   rate				link rate in bit/s with an optional k, m or g suffix. Datagrams queue behind each other at this
+ *						rate and are tail dropped once more than QUEUE_LIMIT ms would be queued.
+ *   seed				seeds the random draws. Without one a seed is picked and shown, so any run can be repeated.
+ *
+ * The old drop percentage (-d) is split evenly between drop and corrupt, as it always was.
+ */
+public class Impairment {
+
+	public static final long REORDER_HOLD = 2_000_000L;		//2 ms, two ticks of the timer wheel
+	public static final long QUEUE_LIMIT = 100_000_000L;	//100 ms of queue at the link rate
+
+	private final double drop;								//Probabilities from 0 to 1
+	private final double corrupt;
+	private final double duplicate;
+	private final double reorder;
+	private final long delay;								//Nanoseconds
+	private final long jitter;
+	private final double burstEnter;
+	private final double burstExit;
+	private final double burstLoss;
+	private final long rate;								//Bytes per second, 0 for no limit
+	private final long seed;
+
+	private Impairment(double pDrop, double pCorrupt, double pDuplicate, double pReorder, long pDelay, long pJitter,
+			double pBurstEnter, double pBurstExit, double pBurstLoss, long pRate, long pSeed) {
+		this.drop = pDrop;
+		this.corrupt = pCorrupt;
+		this.duplicate = pDuplicate;
+		this.reorder = pReorder;
+		this.delay = pDelay;
+		this.jitter = pJitter;
+		this.burstEnter = pBurstEnter;
+		this.burstExit = pBurstExit;
+		this.burstLoss = pBurstLoss;
+		this.rate = pRate;
+		this.seed = pSeed;
+	}
+
+	/*
+	 * Parses the impairment spec, which may be null. Keys not in the spec take their value from the old drop percentage or default to 0.
+	 */
+	public static Impairment parse(String spec, int dropPercentage) {
+		double drop = dropPercentage / 200.0;
+		double corrupt = dropPercentage / 200.0;
+		double duplicate = 0;
+		double reorder = 0;
+		long delay = 0;
+		long jitter = 0;
+		double burstEnter = 0;
+		double burstExit = 0;
+		double burstLoss = 1;
+		long rate = 0;
+		long seed = ThreadLocalRandom.current().nextLong();
+
+		if (spec != null && !spec.isEmpty()) {
+			for (String pair : spec.split(",")) {
+				String[] keyValue = pair.split("=", 2);
+				if (keyValue.length != 2) {
+					throw new IllegalArgumentException("Impairment settings are key=value pairs: " + pair);
+				}
+				String key = keyValue[0].trim().toLowerCase();
+				String value = keyValue[1].trim();
+
+				switch (key) {
+				case "drop":
+					drop = percent(key, value);
+					break;
+				case "corrupt":
+					corrupt = percent(key, value);
+					break;
+				case "dup":
+					duplicate = percent(key, value);
+					break;
+				case "reorder":
+					reorder = percent(key, value);
+					break;
+				case "delay":
+					delay = millis(key, value);
+					break;
+				case "jitter":
+					jitter = millis(key, value);
+					break;
+				case "burst":
+					String[] parts = value.split(":");
+					if (parts.length < 2 || parts.length > 3) {
+						throw new IllegalArgumentException("burst takes p:r or p:r:loss, not " + value);
+					}
+					burstEnter = percent(key, parts[0]);
+					burstExit = percent(key, parts[1]);
+					burstLoss = parts.length > 2 ? percent(key, parts[2]) : 1;
+					break;
+				case "rate":
+					rate = bitRate(value) / 8;
+					break;
+				case "seed":
+					seed = Long.parseLong(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown impairment: " + key);
+				}
+			}
+		}
+		if (drop + corrupt > 1) {
+			throw new IllegalArgumentException("drop and corrupt add up to more than 100%");
+		}
+		return new Impairment(drop, corrupt, duplicate, reorder, delay, jitter, burstEnter, burstExit, burstLoss, rate, seed);
+	}
+
+	private static double percent(String key, String value) {
+		double percent = Double.parseDouble(value);
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException(key + " must be a percentage from 0 to 100, not " + value);
+		}
+		return percent / 100;
+	}
+
+	private static long millis(String key, String value) {
+		long ms = Long.parseLong(value);
+		if (ms < 0) {
+			throw new IllegalArgumentException(key + " can't be negative");
+		}
+		return ms * 1_000_000L;
+	}
+
+	private static long bitRate(String value) {
+		String lower = value.toLowerCase();
+		long scale = 1;
+		if (lower.endsWith("k")) {
+			scale = 1_000L;
+		} else if (lower.endsWith("m")) {
+			scale = 1_000_000L;
+		} else if (lower.endsWith("g")) {
+			scale = 1_000_000_000L;
+		}
+		if (scale > 1) {
+			lower = lower.substring(0, lower.length() - 1);
+		}
+		long bits = (long) (Double.parseDouble(lower) * scale);
+		if (bits < 8) {
+			throw new IllegalArgumentException("rate must be at least 8 bit/s, not " + value);
+		}
+		return bits;
+	}
+
+	/*
+	 * Whether any datagram may have to be held back instead of being sent right away
+	 */
+	public boolean delays() {
+		return delay > 0 || jitter > 0 || reorder > 0 || rate > 0;
+	}
+
+	public double getDrop() {
+		return drop;
+	}
+
+	public double getCorrupt() {
+		return corrupt;
+	}
+
+	public double getDuplicate() {
+		return duplicate;
+	}
+
+	public double getReorder() {
+		return reorder;
+	}
+
+	public long getDelay() {
+		return delay;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	public double getBurstEnter() {
+		return burstEnter;
+	}
+
+	public double getBurstExit() {
+		return burstExit;
+	}
+
+	public double getBurstLoss() {
+		return burstLoss;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	@Override
+	public String toString() {
+		String text = String.format("drop %.1f%%, corrupt %.1f%%, dup %.1f%%, reorder %.1f%%, delay %d+-%d ms",
+				drop * 100, corrupt * 100, duplicate * 100, reorder * 100, delay / 1_000_000, jitter / 1_000_000);
+		if (burstEnter > 0) {
+			text = text.concat(String.format(", burst %.1f%%:%.1f%%:%.0f%%", burstEnter * 100, burstExit * 100, burstLoss * 100));
+		}
+		if (rate > 0) {
+			text = text.concat(String.format(", rate %d kbit/s", rate * 8 / 1000));
+		}
+		return text.concat(", seed " + seed);
+	}
+}
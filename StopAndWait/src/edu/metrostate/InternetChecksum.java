@@ -0,0 +1,74 @@
+package edu.metrostate;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/*
+ * The 16 bit one's complement Internet checksum (RFC 1071), as used by IP, UDP and TCP.
+ * It can be updated incrementally across any split of the data, odd lengths included.
+ */
+public class InternetChecksum implements Checksum {
+	private long sum;
+	private boolean odd;									//The next byte is the low byte of a 16 bit word
+
+	@Override
+	public void update(int b) {
+		if (odd) {
+			sum += b & 0xFF;
+		} else {
+			sum += (b & 0xFF) << 8;
+		}
+		odd = !odd;
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int i = off;
+		int end = off + len;
+		
+		if (odd && i < end) {
+			update(b[i++]);
+		}
+		for (; i + 1 < end; i += 2) {
+			sum += ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+		}
+		if (i < end) {
+			update(b[i]);
+		}
+	}
+
+	/*
+	 * Reads the buffer with absolute gets so that direct buffers are not copied into a temporary array
+	 */
+	@Override
+	public void update(ByteBuffer buffer) {
+		int i = buffer.position();
+		int end = buffer.limit();
+		
+		if (odd && i < end) {
+			update(buffer.get(i++));
+		}
+		for (; i + 1 < end; i += 2) {
+			sum += buffer.getShort(i) & 0xFFFF;
+		}
+		if (i < end) {
+			update(buffer.get(i));
+		}
+		buffer.position(end);
+	}
+
+	@Override
+	public long getValue() {
+		long folded = sum;
+		while ((folded >> 16) != 0) {
+			folded = (folded & 0xFFFF) + (folded >> 16);
+		}
+		return ~folded & 0xFFFF;
+	}
+
+	@Override
+	public void reset() {
+		sum = 0;
+		odd = false;
+	}
+}
@@ -0,0 +1,83 @@
+package edu.metrostate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counts latencies in log-linear buckets: every power of two is split into SUB_BUCKETS equal parts,
+ * so a percentile is reported within 1/SUB_BUCKETS (12.5%) of the true value whatever its magnitude.
+ * Recording is a couple of shifts and one atomic increment and never allocates or locks, so the streams
+ * of a transfer can share one histogram and JMX can read it while they run. Values are in nanoseconds.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/*
+	 * The value below which the given fraction (0 to 1) of the recorded values fall, rounded up to the end of its bucket.
+	 * Returns 0 if nothing was recorded. Values recorded while this runs may or may not be counted.
+	 */
+	public long percentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] > 0) {
+				return Math.min(max.get(), upperBound(i));
+			}
+		}
+		return 0;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * Values below SUB_BUCKETS get a bucket each, above that the top SUB_BITS + 1 bits pick the bucket
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long low = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
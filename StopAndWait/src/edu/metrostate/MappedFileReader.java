@@ -0,0 +1,128 @@
+package edu.metrostate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/*
+ * Reads a file through memory mapped regions. Each read is a single copy from the page cache
+ * straight into the caller's datagram buffer, with no read syscall per packet.
+ */
+public class MappedFileReader implements Closeable {
+
+	private static final long REGION_SIZE = 64L * 1024 * 1024;	//Map the file 64 MB at a time so huge files don't exhaust address space
+	private final FileChannel channel;
+	private final long fileLength;
+	private final boolean shared;							//Opened from another reader, which closes the file
+	private MappedByteBuffer region;
+	private long regionStart;
+	
+	public MappedFileReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		fileLength = channel.size();
+		shared = false;
+	}
+	
+	/*
+	 * A second reader of the file other has open, with a region of its own, so one thread can read two parts of the
+	 * file by turns without remapping at every turn. Closing it leaves the file open.
+	 */
+	public MappedFileReader(MappedFileReader other) {
+		channel = other.channel;
+		fileLength = other.fileLength;
+		shared = true;
+	}
+	
+	/*
+	 * Copies up to length bytes starting at position in the file into dst[offset].
+	 * Returns the number of bytes copied, which is only less than length at the end of the file.
+	 */
+	public int read(long position, byte[] dst, int offset, int length) throws IOException {
+		int count = (int) Math.max(0, Math.min(length, fileLength - position));
+		int done = 0;
+		
+		while (done < count) {
+			long pos = position + done;
+			if (region == null || pos < regionStart || pos >= regionStart + region.capacity()) {
+				map(pos);
+			}
+			
+			int index = (int) (pos - regionStart);
+			int n = Math.min(count - done, region.capacity() - index);
+			region.get(index, dst, offset + done, n);
+			done += n;
+		}
+		return count;
+	}
+	
+	/*
+	 * Copies up to length bytes starting at position in the file into dst at index, heap or direct, leaving dst's position alone.
+	 * Returns the number of bytes copied, which is only less than length at the end of the file.
+	 */
+	public int read(long position, ByteBuffer dst, int index, int length) throws IOException {
+		int count = (int) Math.max(0, Math.min(length, fileLength - position));
+		int done = 0;
+		
+		while (done < count) {
+			long pos = position + done;
+			if (region == null || pos < regionStart || pos >= regionStart + region.capacity()) {
+				map(pos);
+			}
+			
+			int regionIndex = (int) (pos - regionStart);
+			int n = Math.min(count - done, region.capacity() - regionIndex);
+			dst.put(index + done, region, regionIndex, n);
+			done += n;
+		}
+		return count;
+	}
+	
+	/*
+	 * Feeds up to length bytes starting at position in the file to digest, straight from the mapped region.
+	 * Returns the number of bytes fed, which is only less than length at the end of the file.
+	 */
+	public long digest(long position, long length, MessageDigest digest) throws IOException {
+		long count = Math.max(0, Math.min(length, fileLength - position));
+		long done = 0;
+		
+		while (done < count) {
+			long pos = position + done;
+			if (region == null || pos < regionStart || pos >= regionStart + region.capacity()) {
+				map(pos);
+			}
+			
+			int regionIndex = (int) (pos - regionStart);
+			int n = (int) Math.min(count - done, region.capacity() - regionIndex);
+			region.limit(regionIndex + n).position(regionIndex);
+			digest.update(region);
+			region.clear();
+			done += n;
+		}
+		return count;
+	}
+	
+	/*
+	 * Maps the region of the file containing pos
+	 */
+	private void map(long pos) throws IOException {
+		regionStart = pos - (pos % REGION_SIZE);
+		region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(REGION_SIZE, fileLength - regionStart));
+	}
+	
+	public long length() {
+		return fileLength;
+	}
+
+	@Override
+	public void close() throws IOException {
+		region = null;
+		if (!shared) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+ * SHA-256 digests of one stream's range of the file, [start, end), as a tree, so the two ends of a transfer can check
+ * that the receiver's copy is the sender's file and, if it isn't, find which parts differ without comparing it all.
+ *
+ * The range is cut into leaves of leafSize bytes, a power of two of at least MIN_LEAF chosen so there are never more than
+ * MAX_LEAVES, which keeps the tree a few MB however big the range is. A leaf's digest is SHA-256 of a 0 byte and its data,
+ * a node's is SHA-256 of a 1 byte and the digests of its up to FANOUT children, level by level up to the one root. Both
+ * ends build the same shape from start and end alone.
+ *
+ * The sender hashes the range in order as its SendPipeline reads it, see hash(). The receiver can't, its packets arrive
+ * in any order, so it counts the bytes written into each leaf with credit() as the disk stage writes them, and a leaf
+ * whose bytes are all in is queued to be read back from the file and hashed, see nextPending() and setLeaf(). Either
+ * way root() is null until every leaf has its digest. mismatches() compares a run of the other end's digests at one
+ * level with this tree's; a leaf that doesn't match is reset, so it is hashed again once it has been written again.
+ *
+ * The sender's pipeline thread or the receiver's writer thread hashes while the event loop asks for the root and
+ * compares, so everything they share is synchronized on the tree.
+ */
+public class MerkleTree {
+
+	public static final int HASH_SIZE = 32;
+	public static final int FANOUT = 16;
+	private static final long MIN_LEAF = 1024 * 1024;
+	private static final int MAX_LEAVES = 65536;
+	private static final byte LEAF = 0;
+	private static final byte NODE = 1;
+
+	private final long start;
+	private final long end;
+	private final long leafSize;
+	private final byte[][] levels;							//The digests of every level, leaves first and the root last
+	private final boolean[] hashed;							//Which leaves have their digest
+	private final long[] written;							//Receiver only, bytes of each leaf written so far
+	private final ArrayDeque<Integer> pending = new ArrayDeque<>();	//Receiver only, leaves written in full but not hashed yet
+	private final MessageDigest digest = newDigest();		//Used by whichever thread holds the lock
+	private int hashedLeaves;
+	private boolean built;									//The levels above the leaves are up to date
+	private MessageDigest leafDigest;						//Sender only, the leaf being hashed
+	private long hashedTo;									//Sender only, everything before this is in leafDigest or an earlier leaf
+
+	/*
+	 * An empty tree for [pStart, pEnd). receiving allocates the receiver's count of bytes written.
+	 */
+	public MerkleTree(long pStart, long pEnd, boolean receiving) {
+		this.start = pStart;
+		this.end = pEnd;
+		long length = end - start;
+		long size = MIN_LEAF;
+		while (size * MAX_LEAVES < length) {
+			size *= 2;
+		}
+		this.leafSize = size;
+		int leaves = (int) Math.max(1, (length + leafSize - 1) / leafSize);
+		int depth = 1;
+		for (int n = leaves; n > 1; n = (n + FANOUT - 1) / FANOUT) {
+			depth++;
+		}
+		this.levels = new byte[depth][];
+		for (int level = 0, n = leaves; level < depth; level++, n = (n + FANOUT - 1) / FANOUT) {
+			levels[level] = new byte[n * HASH_SIZE];
+		}
+		this.hashed = new boolean[leaves];
+		this.written = receiving ? new long[leaves] : null;
+		this.hashedTo = start;
+		if (length == 0) {
+			//The one leaf of an empty range has nothing to wait for
+			setLeaf(0, newLeaf().digest());
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java platform has SHA-256", e);
+		}
+	}
+
+	/*
+	 * A digest with the leaf prefix already in it, to feed a leaf's data into and hand to setLeaf()
+	 */
+	public static MessageDigest newLeaf() {
+		MessageDigest md = newDigest();
+		md.update(LEAF);
+		return md;
+	}
+
+	/*
+	 * Sender only. Hashes the range in order up to upTo, but no more than budget bytes of it, reading it with reader.
+	 * Called as the range is read, with a budget a little over what was read, a tree that started behind (because the
+	 * stream resumed past the start of its range) catches up without holding the reading up for long.
+	 */
+	public void hash(MappedFileReader reader, long upTo, long budget) throws IOException {
+		long target = Math.min(Math.min(upTo, end), hashedTo + budget);
+		while (hashedTo < target) {
+			if (leafDigest == null) {
+				leafDigest = newLeaf();
+			}
+			int leaf = leaf(hashedTo);
+			long leafEnd = leafEnd(leaf);
+			long n = Math.min(target, leafEnd) - hashedTo;
+			if (reader.digest(hashedTo, n, leafDigest) < n) {
+				throw new IOException("The file ended at " + (hashedTo + n) + " before the range it was to be sent from");
+			}
+			hashedTo += n;
+			if (hashedTo == leafEnd) {
+				setLeaf(leaf, leafDigest.digest());
+				leafDigest = null;
+			}
+		}
+	}
+
+	/*
+	 * Sender only. Whether every leaf has been hashed.
+	 */
+	public boolean isHashed() {
+		return hashedTo >= end;
+	}
+
+	/*
+	 * Receiver only. Counts count bytes written at position, whatever part of them is in the range, and queues the leaves
+	 * that are now written in full to be hashed. Each byte must only be credited once until its leaf is reset.
+	 */
+	public synchronized void credit(long position, long count) {
+		long from = Math.max(start, position);
+		long to = Math.min(end, position + count);
+		while (from < to) {
+			int leaf = leaf(from);
+			long leafEnd = leafEnd(leaf);
+			long n = Math.min(to, leafEnd) - from;
+			written[leaf] += n;
+			if (written[leaf] == leafEnd - leafStart(leaf)) {
+				pending.add(leaf);
+			}
+			from += n;
+		}
+	}
+
+	/*
+	 * Receiver only. The next leaf that is written in full and waiting to be hashed, or -1 if there is none.
+	 */
+	public synchronized int nextPending() {
+		Integer leaf = pending.poll();
+		return leaf == null ? -1 : leaf;
+	}
+
+	/*
+	 * Stores the digest of a leaf, made with newLeaf()
+	 */
+	public synchronized void setLeaf(int leaf, byte[] hash) {
+		System.arraycopy(hash, 0, levels[0], leaf * HASH_SIZE, HASH_SIZE);
+		if (!hashed[leaf]) {
+			hashed[leaf] = true;
+			hashedLeaves++;
+		}
+		built = false;
+	}
+
+	/*
+	 * The root digest, or null while some leaf hasn't been hashed
+	 */
+	public synchronized byte[] root() {
+		if (hashedLeaves < hashed.length) {
+			return null;
+		}
+		if (!built) {
+			for (int level = 1; level < levels.length; level++) {
+				int children = levels[level - 1].length / HASH_SIZE;
+				for (int node = 0; node * FANOUT < children; node++) {
+					int first = node * FANOUT;
+					int count = Math.min(FANOUT, children - first);
+					digest.update(NODE);
+					digest.update(levels[level - 1], first * HASH_SIZE, count * HASH_SIZE);
+					try {
+						digest.digest(levels[level], node * HASH_SIZE, HASH_SIZE);
+					} catch (DigestException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+			built = true;
+		}
+		return Arrays.copyOfRange(levels[levels.length - 1], 0, HASH_SIZE);
+	}
+
+	/*
+	 * Copies the digests of count nodes of a level from index on into dst at offset. Only valid once root() isn't null.
+	 */
+	public synchronized void copyTo(int level, long index, int count, ByteBuffer dst, int offset) {
+		dst.put(offset, levels[level], (int) index * HASH_SIZE, count * HASH_SIZE);
+	}
+
+	/*
+	 * Compares the other end's digests of count nodes of a level from index on, in src at offset, with this tree's.
+	 * Bit i is set if node index + i differs or isn't known here. A leaf that differs is reset to be written and hashed
+	 * again. Nodes outside the tree are ignored.
+	 */
+	public synchronized long mismatches(int level, long index, int count, ByteBuffer src, int offset) {
+		if (level < 0 || level >= levels.length || index < 0 || count < 0 || count > Long.SIZE) {
+			return 0;
+		}
+		int nodes = getNodes(level);
+		boolean known = root() != null;
+		long bits = 0;
+		for (int i = 0; i < count && index + i < nodes; i++) {
+			int node = (int) index + i;
+			boolean same = level == 0 ? hashed[node] : known;
+			for (int b = 0; same && b < HASH_SIZE; b++) {
+				same = levels[level][node * HASH_SIZE + b] == src.get(offset + i * HASH_SIZE + b);
+			}
+			if (!same) {
+				bits |= 1L << i;
+				if (level == 0 && hashed[node]) {
+					hashed[node] = false;
+					hashedLeaves--;
+					written[node] = 0;
+					built = false;
+				}
+			}
+		}
+		return bits;
+	}
+
+	private int leaf(long position) {
+		return (int) ((position - start) / leafSize);
+	}
+
+	public long leafStart(int leaf) {
+		return start + leaf * leafSize;
+	}
+
+	public long leafEnd(int leaf) {
+		return Math.min(end, start + (leaf + 1) * leafSize);
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	/*
+	 * The level of the root, 0 if the range is a single leaf
+	 */
+	public int getTop() {
+		return levels.length - 1;
+	}
+
+	public int getNodes(int level) {
+		return levels[level].length / HASH_SIZE;
+	}
+}
@@ -1,251 +1,470 @@
-package edu.metrostate;
-
-import java.nio.ByteBuffer;
-
-public class Packet {
-	private short cksum;
-	private short len;
-	private int ackno;
-	private int seqno;
-	private byte[] data;
-	private byte[] packet;
-	
-	/*
-	 * Creates a data packet, calculates cksum and len, and creates packet
-	 */
-	public Packet(byte[] pData, int pSeqno) {
-		this.data = pData;
-		this.seqno = pSeqno;
-		this.ackno = pSeqno;
-		this.cksum = 0;
-		this.len = (short)(data.length + 12);
-		
-		craftPacket();
-	}
-	
-	/*
-	 * Creates an ACK packet
-	 */
-	public Packet(int pAckno) {
-		this.ackno = pAckno;
-		this.cksum = 0;
-		this.len = (short)(8);
-		
-		craftPacket();
-		
-	}
-	/*
-	 * Takes a byte array and unpacks it into a packet object
-	 */
-	public Packet(byte[] pPacket, short length) {
-		this.packet = pPacket;
-		this.len = length;
-		unpackPacket();
-	}
-
-	/*
-	 * Returns the packet as a byte array
-	 */
-	public byte[] toByteArray() {
-		return packet;
-	}
-	
-	/*
-	 * Packs the packet
-	 */
-	private void craftPacket() {
-		//If it's a data packet
-	    if (data != null) {
-			packet = new byte[data.length + 12];
-		    packCksum();
-		    packLen();
-		    packSeqno();
-		    packAckno();
-		    packData();
-
-	    } else {
-	    	packet = new byte[8];
-	    	packCksum();
-	    	packLen();
-	    	packAckno();
-	    } // Otherwise it's an ack packet
-	}
-	
-	/*
-	 * Unpacks the packet
-	 */
-	private void unpackPacket() {
-
-    	unpackCksum();
-    	unpackLen();
-    	unpackAckno();
-    
-	    if (len > 8) {
-	    	unpackSeqno();
-	    	unpackData();
-	    }
-	}
-	
-	/*
-	 * Returns the packed byte array
-	 */
-	public byte[] getPacket() {
-		return packet;
-	}
-	
-	/*
-	 * Oh no! An error occurred
-	 */
-	public void error() {
-		cksum = 1;
-		packCksum();
-	}
-	
-	/*
-	 * Is this a valid packet?
-	 */
-	public boolean isValidPacket() {
-		return cksum == 0;
-	}
-	
-	/*
-	 * Error correction
-	 */
-	public void fixError() {
-		cksum = 0;
-		packCksum();
-
-	}
-	
-	/*
-	 * Packs the checksum into the packet
-	 */
-	private void packCksum() {
-	    packet[0] = (byte) ((cksum >> 8) & 0xff);
-	    packet[1] = (byte) (cksum & 0xff);
-	}
-	
-	/*
-	 * Packs the length into the packet
-	 */
-	private void packLen() {
-	    packet[2] = (byte) ((len >> 8) & 0xff);
-	    packet[3] = (byte) (len & 0xff);
-	}
-	
-	/*
-	 * Packs the Ack number into the packet
-	 */
-	private void packAckno() {
-	    packet[4] = (byte) ((ackno & 0xFF000000) >> 24);
-	    packet[5] = (byte) ((ackno & 0x00FF0000) >> 16);
-	    packet[6] = (byte) ((ackno & 0x0000FF00) >> 8);
-	    packet[7] = (byte) ((ackno & 0x000000FF) >> 0);
-	}
-	
-	/*
-	 * Packs the sequence number into the packet
-	 */
-	private void packSeqno() {
-	    packet[8] = (byte) ((seqno & 0xFF000000) >> 24);
-	    packet[9] = (byte) ((seqno & 0x00FF0000) >> 16);
-	    packet[10] = (byte) ((seqno & 0x0000FF00) >> 8);
-	    packet[11] = (byte) ((seqno & 0x000000FF) >> 0);
-	}
-	
-	/*
-	 * Packs the payload into the packet
-	 */
-	private void packData() {
-		for (int i = 0; i < data.length; i++) {
-			packet[i + 12] = data[i];
-		}
-	}
-	
-	/*
-	 * Unpacks the checksum from the packet
-	 */
-	private void unpackCksum() {
-		byte[] bCksum = new byte[2];
-    	for (int i = 0; i < 2; i++) {
-    		bCksum[i] = packet[i];
-    	}
-    	cksum = (short) ((bCksum[1] & 0xFF) << 8 | (bCksum[0] & 0xFF));
-	}
-	
-	/*
-	 * Unpacks the length from the packet
-	 */
-	private void unpackLen() {
-		byte[] bLen = new byte[2];
-    	for (int i = 0; i < 2; i++) {
-    		bLen[i] = packet[i + 2];
-    	}
-    	len = ByteBuffer.wrap(bLen).getShort();
-	}
-	
-	/*
-	 * Unpacks the Ack number from the packet
-	 */
-	private void unpackAckno() {
-    	byte[] bAckno = new byte[4];
-    	for (int i = 0; i < 4; i++) {
-    		bAckno[i] = packet[i + 4];
-    	}
-    	ackno = ByteBuffer.wrap(bAckno).getInt();
-	}
-	
-	/*
-	 * Unpacks the sequence number from the packet
-	 */
-	private void unpackSeqno() {
-		data = new byte[len - 12];
-    	byte[] bSeqno = new byte[4];
-    	for (int i = 0; i < 4; i++) {
-    		bSeqno[i] = packet[i + 8];
-    	}
-    	seqno = ByteBuffer.wrap(bSeqno).getInt();
-	}
-	
-	/*
-	 * Unpacks the payload from the packet
-	 */
-	private void unpackData() {
-		for (int i = 0; i + 12 < len; i++) {
-			 data[i] = packet[i + 12];
-		}
-	}
-	
-	public short getCksum() {
-		return cksum;
-	}
-
-	public int getAckno() {
-		return ackno;
-	}
-	
-	public short getLen() {
-		return len;
-	}
-
-	public void setAckno(int ackno) {
-		this.ackno = ackno;
-		packAckno();
-	}
-
-	public int getSeqno() {
-		return seqno;
-	}
-
-	public void setSeqno(int seqno) {
-		this.seqno = seqno;
-	}
-
-	public byte[] getData() {
-		return data;
-	}
-
-	public void setData(byte[] data) {
-		this.data = data;
-	}
-}
+package edu.metrostate;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.zip.Checksum;
+
+/*
+ * A view over a datagram buffer that encodes and decodes the packet header in place.
+ * A Packet owns (or wraps) one buffer for its whole life and is reused for every datagram
+ * that passes through it, so packing and unpacking allocate nothing.
+ *
+ * Data packet:    cksum(4) len(2) type(1) flags(1) session(4) ackno(4) seqno(4) offset(8) data(len - 28)
+ * ACK packet:     cksum(4) len(2) type(1) flags(1) session(4) ackno(4) sack(8)
+ * Parity packet:  cksum(4) len(2) type(1) flags(1) session(4) ackno(4) seqno(4) lengths(8) parity(len - 28)
+ * SYN, SYN-ACK:   cksum(4) len(2) type(1) flags(1) session(4) ackno(4) fileLength(8) packetSize(4) windowSize(4) streamCount(2) mode(1) fecGroup(1)
+ *                 rangeStart(8) rangeEnd(8)
+ * FIN, FIN-ACK:   cksum(4) len(2) type(1) flags(1) session(4) ackno(4) [root(32)]
+ * Digest packet:  cksum(4) len(2) type(1) flags(1) session(4) count(4) level(4) index(8) digests(len - 28)
+ * Digest ACK:     cksum(4) len(2) type(1) flags(1) session(4) count(4) level(4) index(8) mismatches(8)
+ *
+ * The checksum covers everything after the cksum field, header and payload. len is unsigned, so a packet
+ * can be as large as a UDP datagram over IPv4 can carry (MAX_PACKET_SIZE).
+ * An ACK is cumulative: ackno is the next seqno the receiver expects, every packet before it has arrived.
+ * Bit i of sack is set when packet ackno + 1 + i has also arrived, so the sender can see the holes.
+ * Seqnos count from 0 in 64 bits, but only their low 32 bits go in the seqno and ackno fields. A window is far smaller
+ * than 2^31 packets, so whoever reads one takes the seqno nearest to the one it expects, see getSeqno(long), and a stream
+ * can send any number of packets. Offsets and lengths are 64 bits throughout.
+ * The session id lets one receiver tell concurrent transfers apart. The COMPRESSED flag on a data packet means
+ * the payload is a zlib stream of the file data at offset, see BlockCompressor; on a SYN that the sender would like to
+ * compress, and on the SYN-ACK that the receiver agrees. VERIFY on a SYN and SYN-ACK does the same for verification.
+ * Other packets leave the flags 0.
+ * A transfer can be split over several streams, each from its own socket with its own seqnos, so data packets
+ * carry the file offset of their payload.
+ *
+ * Each stream opens with a SYN that tells the receiver the file length, the stream count and the packet size,
+ * window and window mode the sender wants; the SYN-ACK answers with what the receiver accepts, which may be less.
+ * The SYN also carries the file offsets the stream's range starts and ends at. The SYN-ACK's rangeStart is the offset the stream resumes
+ * at instead: the receiver already has the whole packets of the range before it from an earlier, interrupted transfer, so the
+ * stream starts sending at the seqno of that offset, which the SYN-ACK's ackno also holds.
+ * A stream ends with a FIN, which carries the number of streams in its ackno field, and the receiver answers with a FIN-ACK.
+ * SYN and FIN are resent until they are answered.
+ *
+ * With forward error correction the SYN asks for a fecGroup size K, and the sender follows every K data packets
+ * (seqnos aligned on multiples of K) with a parity packet: the XOR of their payloads, each padded with zeros to the longest.
+ * Its seqno is the first packet of the group, its ackno the number of packets in the group and its lengths field the XOR
+ * of their payload lengths, so the receiver can rebuild any one packet of the group that was lost. The SYN-ACK's fecGroup
+ * is 0 if the receiver won't use parity. Parity packets are never resent.
+ *
+ * With verification both ends keep a MerkleTree of the stream's range and the FIN carries the sender's root. If the
+ * receiver's root differs it answers with a digest ACK for the root instead of a FIN-ACK, and the sender sends digest
+ * packets, each with the digests of count nodes of one level of its tree from index on, going down from the nodes that
+ * differ to their children. The digest ACK for each names the nodes that differ in its mismatches bitmap, bit i for
+ * node index + i, and once the sender is down to the leaves it sends those parts of the range again and a new FIN.
+ * Digest packets are resent until they are answered, like SYN and FIN.
+ */
+public class Packet {
+	public static final int HEADER_SIZE = 28;
+	public static final int ACK_SIZE = 24;
+	public static final int SYN_SIZE = 52;
+	public static final int FIN_SIZE = 16;
+	public static final int ROOT_FIN_SIZE = FIN_SIZE + MerkleTree.HASH_SIZE;
+	public static final int DIGEST_ACK_SIZE = 36;
+	public static final int SACK_BITS = 64;
+	public static final int MAX_PACKET_SIZE = 65507;		//65535 less the 20 byte IPv4 and 8 byte UDP headers
+
+	public static final byte DATA = 0;
+	public static final byte ACK = 1;
+	public static final byte FIN = 2;
+	public static final byte SYN = 3;
+	public static final byte SYN_ACK = 4;
+	public static final byte FIN_ACK = 5;
+	public static final byte PARITY = 6;
+	public static final byte DIGEST = 7;
+	public static final byte DIGEST_ACK = 8;
+
+	public static final byte COMPRESSED = 0x01;
+	public static final byte VERIFY = 0x02;
+
+	private static final int CKSUM_OFFSET = 0;
+	private static final int LEN_OFFSET = 4;
+	private static final int TYPE_OFFSET = 6;
+	private static final int FLAGS_OFFSET = 7;
+	private static final int SESSION_OFFSET = 8;
+	private static final int ACKNO_OFFSET = 12;
+	private static final int SEQNO_OFFSET = 16;
+	private static final int SACK_OFFSET = 16;
+	private static final int FILE_OFFSET = 20;
+	private static final int FILE_LENGTH_OFFSET = 16;
+	private static final int PACKET_SIZE_OFFSET = 24;
+	private static final int WINDOW_SIZE_OFFSET = 28;
+	private static final int STREAM_COUNT_OFFSET = 32;
+	private static final int MODE_OFFSET = 34;
+	private static final int FEC_GROUP_OFFSET = 35;
+	private static final int RANGE_START_OFFSET = 36;
+	private static final int RANGE_END_OFFSET = 44;
+	private static final int LEVEL_OFFSET = 16;
+	private static final int INDEX_OFFSET = 20;
+	private static final int MISMATCH_OFFSET = 28;
+
+	private final ByteBuffer buffer;
+	private final Checksum checksum;
+	private int errorBit = -1;								//The bit flipped by error(), so fixError() can flip it back
+
+	/*
+	 * Creates a packet over an existing buffer, heap or direct. The buffer's position and limit are only used while checksumming.
+	 */
+	public Packet(ByteBuffer pBuffer, ChecksumType type) {
+		this.buffer = pBuffer;
+		this.checksum = type.newChecksum();
+	}
+
+	/*
+	 * Wraps a byte array without copying it, e.g. the buffer datagrams are received into
+	 */
+	public Packet(byte[] pPacket, ChecksumType type) {
+		this(ByteBuffer.wrap(pPacket), type);
+	}
+
+	/*
+	 * Creates a CRC32C protected ACK packet
+	 */
+	public Packet(int pSession, long pAckno, long pSack) {
+		this(new byte[ACK_SIZE], ChecksumType.CRC32C);
+		packAck(pSession, pAckno, pSack);
+	}
+
+	/*
+	 * Packs the header of a data packet whose payload is already in the buffer after the header, then checksums it.
+	 * offset is where the payload belongs in the file.
+	 */
+	public Packet packData(int session, long seqno, long offset, int dataLength) {
+		return packData(session, seqno, offset, dataLength, (byte) 0);
+	}
+
+	/*
+	 * Packs a data packet with flags, e.g. COMPRESSED
+	 */
+	public Packet packData(int session, long seqno, long offset, int dataLength, byte flags) {
+		packHeader(DATA, session, seqno, dataLength + HEADER_SIZE, flags);
+		buffer.putInt(SEQNO_OFFSET, (int) seqno);
+		buffer.putLong(FILE_OFFSET, offset);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs an ACK packet for every packet before ackno plus the ones marked in the sack bitmap, then checksums it
+	 */
+	public Packet packAck(int session, long ackno, long sack) {
+		packHeader(ACK, session, ackno, ACK_SIZE);
+		buffer.putLong(SACK_OFFSET, sack);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs a SYN (type SYN) or its answer (type SYN_ACK) with the transfer's parameters, then checksums it.
+	 * A SYN's ackno is the index of the stream it opens, a SYN-ACK's the seqno the stream resumes at.
+	 */
+	public Packet packSyn(byte type, int session, long ackno, long fileLength, long rangeStart, long rangeEnd, int packetSize,
+			int windowSize, int streamCount, WindowMode mode, int fecGroup, byte flags) {
+		packHeader(type, session, ackno, SYN_SIZE, flags);
+		buffer.putLong(FILE_LENGTH_OFFSET, fileLength);
+		buffer.putInt(PACKET_SIZE_OFFSET, packetSize);
+		buffer.putInt(WINDOW_SIZE_OFFSET, windowSize);
+		buffer.putShort(STREAM_COUNT_OFFSET, (short) streamCount);
+		buffer.put(MODE_OFFSET, (byte) mode.ordinal());
+		buffer.put(FEC_GROUP_OFFSET, (byte) fecGroup);
+		buffer.putLong(RANGE_START_OFFSET, rangeStart);
+		buffer.putLong(RANGE_END_OFFSET, rangeEnd);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs the header of a parity packet for the count packets from seqno first on, whose parity is already in the buffer
+	 * after the header, then checksums it. lengths is the XOR of the packets' payload lengths.
+	 */
+	public Packet packParity(int session, long first, int count, long lengths, int dataLength) {
+		packHeader(PARITY, session, count, dataLength + HEADER_SIZE);
+		buffer.putInt(SEQNO_OFFSET, (int) first);
+		buffer.putLong(FILE_OFFSET, lengths);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs a FIN telling the receiver that this stream of a transfer with streamCount streams is over, or
+	 * its answer (type FIN_ACK), then checksums it
+	 */
+	public Packet packFin(byte type, int session, int streamCount) {
+		packHeader(type, session, streamCount, FIN_SIZE);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs a FIN that also carries the root of the sender's MerkleTree of the stream's range, then checksums it
+	 */
+	public Packet packFin(int session, int streamCount, byte[] root) {
+		packHeader(FIN, session, streamCount, ROOT_FIN_SIZE);
+		buffer.put(FIN_SIZE, root, 0, MerkleTree.HASH_SIZE);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs a digest packet with the digests of count nodes of a level of tree from index on, then checksums it
+	 */
+	public Packet packDigest(int session, int level, long index, int count, MerkleTree tree) {
+		packHeader(DIGEST, session, count, HEADER_SIZE + count * MerkleTree.HASH_SIZE);
+		buffer.putInt(LEVEL_OFFSET, level);
+		buffer.putLong(INDEX_OFFSET, index);
+		tree.copyTo(level, index, count, buffer, HEADER_SIZE);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs the answer to a digest packet: bit i of mismatches is set if node index + i differs, then checksums it
+	 */
+	public Packet packDigestAck(int session, int level, long index, int count, long mismatches) {
+		packHeader(DIGEST_ACK, session, count, DIGEST_ACK_SIZE);
+		buffer.putInt(LEVEL_OFFSET, level);
+		buffer.putLong(INDEX_OFFSET, index);
+		buffer.putLong(MISMATCH_OFFSET, mismatches);
+		packCksum();
+		return this;
+	}
+
+	/*
+	 * Packs the fields shared by every packet type. Only the low 32 bits of ackno are sent.
+	 */
+	private void packHeader(byte type, int session, long ackno, int length) {
+		packHeader(type, session, ackno, length, (byte) 0);
+	}
+
+	private void packHeader(byte type, int session, long ackno, int length, byte flags) {
+		buffer.putShort(LEN_OFFSET, (short) length);
+		buffer.put(TYPE_OFFSET, type);
+		buffer.put(FLAGS_OFFSET, flags);
+		buffer.putInt(SESSION_OFFSET, session);
+		buffer.putInt(ACKNO_OFFSET, (int) ackno);
+	}
+
+	/*
+	 * Returns the backing array of a heap packet, for handing to a DatagramPacket
+	 */
+	public byte[] toByteArray() {
+		return buffer.array();
+	}
+
+	/*
+	 * Returns the buffer the packet is encoded in
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/*
+	 * Oh no! An error occurred. Flips one bit of the packet, picked by random so a seeded run flips the same one.
+	 */
+	public void error(SplittableRandom random) {
+		errorBit = random.nextInt(getLen() * 8);
+		flipBit(errorBit);
+	}
+
+	/*
+	 * Is this a valid packet? The length field has to match the number of bytes received and the checksum has to match the contents.
+	 */
+	public boolean isValidPacket(int receivedLength) {
+		if (receivedLength < FIN_SIZE || receivedLength > buffer.capacity() || getLen() != receivedLength
+				|| ((getType() == DATA || getType() == PARITY) && receivedLength < HEADER_SIZE) || (getType() == ACK && receivedLength < ACK_SIZE)
+				|| ((getType() == SYN || getType() == SYN_ACK) && receivedLength < SYN_SIZE)
+				|| (getType() == DIGEST && receivedLength < HEADER_SIZE) || (getType() == DIGEST_ACK && receivedLength < DIGEST_ACK_SIZE)) {
+			return false;
+		}
+		return getCksum() == computeCksum(receivedLength);
+	}
+
+	/*
+	 * Error correction
+	 */
+	public void fixError() {
+		if (errorBit >= 0) {
+			flipBit(errorBit);
+			errorBit = -1;
+		}
+	}
+
+	/*
+	 * Packs the checksum of the rest of the packet into the packet
+	 */
+	private void packCksum() {
+		buffer.putInt(CKSUM_OFFSET, computeCksum(getLen()));
+	}
+
+	/*
+	 * Checksums everything after the cksum field up to length
+	 */
+	private int computeCksum(int length) {
+		checksum.reset();
+		if (buffer.hasArray()) {
+			checksum.update(buffer.array(), buffer.arrayOffset() + LEN_OFFSET, length - LEN_OFFSET);
+		} else {
+			buffer.limit(length).position(LEN_OFFSET);
+			checksum.update(buffer);
+			buffer.clear();
+		}
+		return (int) checksum.getValue();
+	}
+
+	private void flipBit(int bit) {
+		int index = bit >>> 3;
+		buffer.put(index, (byte) (buffer.get(index) ^ (1 << (bit & 7))));
+	}
+
+	public int getCksum() {
+		return buffer.getInt(CKSUM_OFFSET);
+	}
+
+	public byte getType() {
+		return buffer.get(TYPE_OFFSET);
+	}
+
+	public int getSession() {
+		return buffer.getInt(SESSION_OFFSET);
+	}
+
+	public int getAckno() {
+		return buffer.getInt(ACKNO_OFFSET);
+	}
+
+	/*
+	 * The full ackno of an ACK, the one nearest expected that ends in the 32 bits the packet carries
+	 */
+	public long getAckno(long expected) {
+		return unwrap(getAckno(), expected);
+	}
+
+	public int getLen() {
+		return buffer.getShort(LEN_OFFSET) & 0xFFFF;
+	}
+
+	public byte getFlags() {
+		return buffer.get(FLAGS_OFFSET);
+	}
+
+	public boolean isCompressed() {
+		return (getFlags() & COMPRESSED) != 0;
+	}
+
+	public boolean isVerified() {
+		return (getFlags() & VERIFY) != 0;
+	}
+
+	public int getSeqno() {
+		return buffer.getInt(SEQNO_OFFSET);
+	}
+
+	/*
+	 * The full seqno of a data or parity packet, the one nearest expected that ends in the 32 bits the packet carries
+	 */
+	public long getSeqno(long expected) {
+		return unwrap(getSeqno(), expected);
+	}
+
+	/*
+	 * Serial number arithmetic: the difference of the low 32 bits, taken as signed, is the distance from expected as long
+	 * as the two are less than 2^31 apart, which any seqno inside or near the window is
+	 */
+	public static long unwrap(int low, long expected) {
+		return expected + (low - (int) expected);
+	}
+
+	public long getOffset() {
+		return buffer.getLong(FILE_OFFSET);
+	}
+
+	/*
+	 * The XOR of the payload lengths of a parity packet's group
+	 */
+	public long getLengths() {
+		return buffer.getLong(FILE_OFFSET);
+	}
+
+	public long getFileLength() {
+		return buffer.getLong(FILE_LENGTH_OFFSET);
+	}
+
+	/*
+	 * The file offset the range of a SYN's stream starts at
+	 */
+	public long getRangeStart() {
+		return buffer.getLong(RANGE_START_OFFSET);
+	}
+
+	/*
+	 * The file offset the range of a SYN's stream ends at, exclusive
+	 */
+	public long getRangeEnd() {
+		return buffer.getLong(RANGE_END_OFFSET);
+	}
+
+	/*
+	 * Whether a FIN carries the root of the sender's MerkleTree, which then starts at FIN_SIZE
+	 */
+	public boolean hasRoot() {
+		return getLen() >= ROOT_FIN_SIZE;
+	}
+
+	/*
+	 * The tree level of a digest packet or digest ACK
+	 */
+	public int getLevel() {
+		return buffer.getInt(LEVEL_OFFSET);
+	}
+
+	/*
+	 * The first node of a digest packet or digest ACK
+	 */
+	public long getIndex() {
+		return buffer.getLong(INDEX_OFFSET);
+	}
+
+	/*
+	 * The nodes a digest ACK says differ, bit i for node getIndex() + i
+	 */
+	public long getMismatches() {
+		return buffer.getLong(MISMATCH_OFFSET);
+	}
+
+	public int getPacketSize() {
+		return buffer.getInt(PACKET_SIZE_OFFSET);
+	}
+
+	public int getWindowSize() {
+		return buffer.getInt(WINDOW_SIZE_OFFSET);
+	}
+
+	public int getStreamCount() {
+		return buffer.getShort(STREAM_COUNT_OFFSET) & 0xFFFF;
+	}
+
+	/*
+	 * The window mode of a SYN, or null if it names one this end doesn't know
+	 */
+	public WindowMode getMode() {
+		int mode = buffer.get(MODE_OFFSET);
+		return (mode >= 0 && mode < WindowMode.values().length) ? WindowMode.values()[mode] : null;
+	}
+
+	/*
+	 * The forward error correction group size of a SYN or SYN-ACK, 0 for none
+	 */
+	public int getFecGroup() {
+		return buffer.get(FEC_GROUP_OFFSET) & 0xFF;
+	}
+
+	public long getSack() {
+		return buffer.getLong(SACK_OFFSET);
+	}
+
+	/*
+	 * The payload starts at HEADER_SIZE in the buffer and runs for this many bytes
+	 */
+	public int getDataLength() {
+		return getLen() - HEADER_SIZE;
+	}
+}
@@ -0,0 +1,159 @@
+package edu.metrostate;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The running XOR of the payloads of one forward error correction group. The sender adds each packet of a group
+ * as it first goes out and sends the result as the group's parity packet; the receiver adds every packet of the
+ * group it writes plus the parity packet, so once all but one packet are in, what is left is the missing one.
+ *
+ * The buffer is borrowed from the BufferPool once, at the largest payload, and reused for every group until close(). Payloads are XORed eight bytes
+ * at a time through getLong and putLong, which the JIT turns into wide loads and stores, so adding a packet costs
+ * about as much as copying it.
+ */
+public class ParityGroup {
+
+	private final ByteBuffer parity;
+	private long group = -1;								//Which group this is, seqno / group size
+	private long lengths;									//XOR of the payload lengths
+	private int maxLength;									//How much of parity is in use
+	private int count;										//Payloads added, not counting a parity packet
+	private long first;										//From the parity packet: the group's first seqno and its size
+	private int expected;
+	private boolean hasParity;
+	private boolean done;									//Complete or rebuilt, nothing more to do
+
+	public ParityGroup(int maxPayload) {
+		parity = BufferPool.SHARED.borrow(maxPayload);
+		zero(maxPayload);									//The pool's buffers keep what their last user left in them
+	}
+
+	/*
+	 * Empties the group for reuse as the given one
+	 */
+	public void reset(long pGroup) {
+		parity.clear();
+		clear();
+		group = pGroup;
+		lengths = 0;
+		maxLength = 0;
+		count = 0;
+		first = 0;
+		expected = 0;
+		hasParity = false;
+		done = false;
+	}
+
+	/*
+	 * XORs length bytes of src from position on into the group
+	 */
+	public void add(ByteBuffer src, int position, int length) {
+		xor(src, position, length);
+		lengths ^= length;
+		count++;
+	}
+
+	/*
+	 * XORs a parity packet for the expected packets from seqno pFirst on into the group
+	 */
+	public void addParity(ByteBuffer src, int position, int length, long pLengths, long pFirst, int pExpected) {
+		xor(src, position, length);
+		lengths ^= pLengths;
+		first = pFirst;
+		expected = pExpected;
+		hasParity = true;
+	}
+
+	/*
+	 * Whether the parity and all but one of the group's packets are in, so the missing one can be rebuilt
+	 */
+	public boolean canRecover() {
+		return hasParity && !done && count == expected - 1 && lengths >= 0 && lengths <= maxLength;
+	}
+
+	private void xor(ByteBuffer src, int position, int length) {
+		if (length > maxLength) {
+			maxLength = length;
+		}
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			parity.putLong(i, parity.getLong(i) ^ src.getLong(position + i));
+		}
+		for (; i < length; i++) {
+			parity.put(i, (byte) (parity.get(i) ^ src.get(position + i)));
+		}
+	}
+
+	private void clear() {
+		zero(maxLength);
+	}
+
+	private void zero(int length) {
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			parity.putLong(i, 0L);
+		}
+		for (; i < length; i++) {
+			parity.put(i, (byte) 0);
+		}
+	}
+
+	/*
+	 * Copies the XOR so far, as long as the longest payload added, into dst at position
+	 */
+	public void copyTo(ByteBuffer dst, int position) {
+		dst.put(position, parity, 0, maxLength);
+	}
+
+	/*
+	 * The payload of the one missing packet of a recoverable group, from position 0 to getLengths().
+	 * The group can't take any more payloads until it is reset.
+	 */
+	public ByteBuffer getMissing() {
+		parity.limit((int) lengths).position(0);
+		return parity;
+	}
+
+	public long getLengths() {
+		return lengths;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getGroup() {
+		return group;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public int getExpected() {
+		return expected;
+	}
+
+	public boolean hasParity() {
+		return hasParity;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public void setDone() {
+		done = true;
+	}
+
+	/*
+	 * Gives the buffer back to the pool, the group can't be used afterwards
+	 */
+	public void close() {
+		BufferPool.SHARED.release(parity);
+	}
+}
@@ -0,0 +1,45 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * Picks a packet size that fits in one IP packet on the way to a receiver, so nothing is fragmented.
+ *
+ * Java sockets can't set the don't fragment bit (before JDK 19) or read the kernel's path MTU, so real
+ * path MTU probing isn't possible from here. Instead this uses the MTU of the local interface the route
+ * to the receiver leaves through, which is the path MTU on a LAN and an upper bound anywhere else.
+ */
+public class PathMtu {
+
+	private static final int IPV4_UDP_HEADERS = 28;
+	private static final int IPV6_UDP_HEADERS = 48;
+	private static final int FALLBACK_PACKET_SIZE = 1200;	//Fits the IPv6 minimum MTU of 1280, like QUIC's initial size
+
+	private PathMtu() {
+	}
+
+	/*
+	 * The largest packet size that goes out unfragmented on the interface facing the destination, at most Packet.MAX_PACKET_SIZE
+	 */
+	public static int packetSizeFor(InetSocketAddress destination) {
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			//Connecting a datagram socket only picks the route, nothing is sent
+			probe.connect(destination);
+			InetAddress local = ((InetSocketAddress) probe.getLocalAddress()).getAddress();
+			NetworkInterface nic = NetworkInterface.getByInetAddress(local);
+			if (nic == null || nic.getMTU() <= 0) {
+				return FALLBACK_PACKET_SIZE;
+			}
+
+			int headers = (destination.getAddress() instanceof Inet6Address) ? IPV6_UDP_HEADERS : IPV4_UDP_HEADERS;
+			return Math.min(nic.getMTU() - headers, Packet.MAX_PACKET_SIZE);
+		} catch (IOException e) {
+			return FALLBACK_PACKET_SIZE;
+		}
+	}
+}
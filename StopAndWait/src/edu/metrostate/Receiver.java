@@ -1,260 +1,520 @@
-package edu.metrostate;
-
-import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-
-import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
-import org.apache.commons.cli.DefaultParser;
-import org.apache.commons.cli.HelpFormatter;
-import org.apache.commons.cli.Options;
-import org.apache.commons.cli.ParseException;
-
-/*
- * Acts as a receiver for a file sent over UDP
- * @author Dan
- * @author James
- * @author Gabriel
- * 
- * @see <a href="https://github.com/michaelknigge/pcldumper/blob/master/pcldumper/src/main/java/de/textmode/pcldumper/Main.java">CLIReference</a>
- */
-
-public class Receiver {
-
-	private static int MAX_PACKET_SIZE = 512;
-	private final int PORT;
-	private final String FILE_PATH;
-	private final int DROP_PERCENTAGE;
-	private final boolean HAS_DROP_RATE;
-	private int curAckno;
-	private Packet receivedPacket;
-	private SketchyServerSocket sketchySocket;
-	private boolean error = false;
-	
-	private final static String USAGE = 
-			"edu.metrostate.Receiver [OPTION]... [FILE] [RECEIVER_IP_ADDRESS] [RECEIVER_PORT]";
-	private final static String HEADER = 
-			"\nReceiver receives packets and assembles them into a file.\n\n";
-	private final static String FOOTER = 
-			"\nUnsupported - Use at your own risk.";
-	
-	public Receiver(CommandLine line) {
-		String settings = "";
-		
-		HAS_DROP_RATE = line.hasOption("d");
-		
-		if (HAS_DROP_RATE) {
-			DROP_PERCENTAGE = Integer.parseInt(line.getOptionValue("d"));
-
-		} else {
-			DROP_PERCENTAGE = 0;
-		}
-		settings = settings.concat("\nDrop Rate: " + DROP_PERCENTAGE + "%");
-		
-		String[] reqArgs = line.getArgs();
-		FILE_PATH = reqArgs[0];
-		settings = settings.concat("\nFile Path: " + FILE_PATH);
-		
-		PORT = Integer.parseInt(reqArgs[2]);
-		settings = settings.concat("\nPort: " + PORT + "\n");
-		
-		System.out.println(settings);
-	}
-	
-	/*
-	 * Receives a file over UDP and stores it in a given destination file path
-	 * 
-	 * @param args	the command line arguments
-	 */
-    public static void main(final String args[]) throws Exception {
-    	
-    	final CommandLineParser parser = new DefaultParser();
-    	
-    	final Options options = new Options();
-    	options.addOption("d", "drop", true, "the percentage (0-100) of datagrams to corrupt, delay, or drop");
-    	options.addOption("h", "help", false, "shows this help");
-    	
-    	//Set up commandline
-    	try {
-    		final CommandLine line = parser.parse(options, args);
-    		final String[] reqArgs = line.getArgs();
-    		
-    		if (line.hasOption("help") || reqArgs.length < 3) {
-    			showHelpAndExit(options);
-    		}
-    		
-    		//Create a new receiver and receive
-    		try {
-    			Receiver receiver = new Receiver(line);
-    			receiver.receive();
-    		} catch (final FileNotFoundException e) {
-                printError(e.getMessage());
-            } catch (final IOException e) {
-                printError(e.getMessage());
-            }
-    	} catch (final ParseException e) {
-            System.err.println(e.getMessage());
-            System.err.println();
-            showHelpAndExit(options);
-    	}
-
-    }
-    	
-	
-	/*
-	 * 
-	 */
-	private void receive() throws Exception {
-		
-		//Create a DatagramSocket to listen on port and a byte array to hold received packets
-        byte[] buffer = new byte[MAX_PACKET_SIZE];
-		DatagramSocket serverSocket = new DatagramSocket(PORT);
-		sketchySocket = new SketchyServerSocket(serverSocket, DROP_PERCENTAGE);
-		Packet ack = new Packet(0);
-        int fileSize = 0;
-        File file = null;
-        
-        try {
-        	
-            //Create a new file object from the given file path, if it doesn't exist, create it.
-            file = new File(FILE_PATH);
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            
-        	//Create a FileOutputStream to write received packets to the destination file
-            FileOutputStream out = new FileOutputStream(file);
-            DatagramPacket received;
-
-            boolean firstTime = true;
-            
-            //While the CLOSE packet has not been sent, receive the packet and write it to the file.
-            do {
-            	//Set up receive packets
-                received = new DatagramPacket(buffer, buffer.length);
-                if (firstTime) {
-                	System.out.println("Listening.");
-                	System.out.println("Waiting for packet 0");
-                    serverSocket.receive(received);
-                    buffer = new byte[received.getLength()];
-                	firstTime = false;
-                } else {
-                	System.out.println("Waiting for packet " + curAckno);
-                	serverSocket.receive(received);
-                }
-                
-                receivedPacket = new Packet(received.getData(), (short) received.getLength());
-
-                //Check if the received packet has a cksum of 0 (valid packet) and, if so, send an ack packet back and write
-                if (received.getLength() != 0) {
-                	if (!receivedPacket.isValidPacket()) {
-                		printReceivedStatus("RECV","CRPT");
-                		error = true;
-                	} else if (curAckno != receivedPacket.getSeqno()) {
-                		printReceivedStatus("DUPL","!Seq");
-                		error = true;
-                		curAckno = receivedPacket.getAckno();
-	                    ack.setAckno(curAckno);
-	                    sendAck(ack, received.getAddress(), received.getPort());
-	                    curAckno++;
-                	} else { 
-	                	//Set the ack packet number to the received packets ack number
-	                    ack.setAckno(receivedPacket.getAckno());
-	                    
-	                	//Send the ackPacket
-	                    sendAck(ack, received.getAddress(), received.getPort());
-	
-	                    //Write the data from the packet to the file
-	                    out.write(receivedPacket.getData(), 0, receivedPacket.getData().length);
-	                    out.flush();
-	
-	                    fileSize += received.getLength();
-	                    
-	                    curAckno++;
-                	} 
-                }
-
-            } while (received.getLength() != 0);
-            System.out.println("Received CLOSE Packet.");
-
-            //Close file output buffer
-            System.out.println("Closing file stream...");
-            out.close();
-            System.out.println("File stream closed.");
-            
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        System.out.println("Closing socket...");
-        serverSocket.close();
-        System.out.println("Socket Closed.");
-
-
-
-        System.out.println("File Size: " + fileSize / 1000 + " KB\nSaved to " + file.getPath());
-    }
-    
-	/*
-	 * Shows the help info and exits the program
-	 */
-	private static final void showHelpAndExit(final Options pOptions) {
-		final HelpFormatter formatter = new HelpFormatter();
-		formatter.printHelp(USAGE, HEADER, pOptions, FOOTER);
-		System.exit(1);
-	}
-	
-	/*
-	 * Makes errors look pretty
-	 */
-	private static final void printError(final String error) {
-        System.err.println();
-        System.err.println("**********************************************************************");
-        System.err.println();
-        System.err.println(error);
-        System.err.println();
-        System.err.println("**********************************************************************");
-        System.err.println();
-	}	
-	
-	private void printAckStatus(String status1, String status2) {
-		System.out.println(status1 + " " + curAckno + " " + System.currentTimeMillis() + " " + status2);
-	}
-	
-	private void printReceivedStatus(String status1, String status2) {
-		System.out.println(status1 + " " + System.currentTimeMillis() + " " + receivedPacket.getSeqno() + " " + status2);
-	}
-	
-	private void sendAck(Packet packet, InetAddress address, int port) {
-			int result;
-			try {
-				result = sketchySocket.send(packet, address, port);
-	
-				if (result == 1) {
-					if (error) {
-						printAckStatus("ReSend.", "DROP");
-					} else {
-						printAckStatus("SENDing", "DROP");
-					}
-					} else if (result == 2) {
-					if (error) {
-						printAckStatus("ReSend.", "ERR");
-					} else {
-						printAckStatus("SENDing", "ERR");
-					}
-					} else {
-					if (error) {
-						printAckStatus("ReSend.", "SENT");
-						error = false;
-					} else {
-						printAckStatus("SENDing", "SENT");
-					}
-				}
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-	}
+package edu.metrostate;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/*
+ * Acts as a receiver for a file sent over UDP
+ * @author Dan
+ * @author James
+ * @author Gabriel
+ * 
+ * @see <a href="https://github.com/michaelknigge/pcldumper/blob/master/pcldumper/src/main/java/de/textmode/pcldumper/Main.java">CLIReference</a>
+ */
+
+public class Receiver {
+
+	private final int PACKET_SIZE;
+	private final int PORT;
+	private final String FILE_PATH;
+	private final int DROP_PERCENTAGE;
+	private final Impairment IMPAIRMENT;
+	private final boolean HAS_DROP_RATE;
+	private final int WINDOW_SIZE;
+	private final ChecksumType CHECKSUM;
+	private final FlushPolicy FSYNC;
+	private final boolean SERVER;
+	private final int ACK_EVERY;
+	private final int ACK_DELAY;
+	private final int INTERVAL;								//Seconds between summary lines, 0 for only the final one
+	private final TransferMetrics metrics = new TransferMetrics();
+	private final EventLog log;
+	private final Map<SessionKey, ReceiverSession> sessions = new HashMap<>();
+	private final Map<SessionKey, Long> closedSessions = new HashMap<>();	//Recently finished sessions, so late retransmissions don't start them over
+	private final Map<SessionKey, TransferFile> transfers = new HashMap<>();	//Output files by sender address (port 0) and session id, shared by the streams of a transfer
+	private SketchyServerSocket sketchySocket;
+	private DatagramChannel channel;
+	private DatagramBatcher batcher;
+	private EventLoop loop;
+	private Packet[] receivedPackets;						//Views over the batcher's receive ring
+	private final SessionKey probe = new SessionKey();
+	private TimerWheel.Timeout sweepTimer;
+	private TimerWheel.Timeout lingerTimer;
+	private TimerWheel.Timeout summaryTimer;
+	private EventLoop.Signal handOffSignal;					//Raised by a transfer's writer when it is ready for more
+	private long lastActivity;								//Metrics activity at the last summary line
+	private Packet finAck;									//Answers FINs of sessions that are already closed
+	private final CountDownLatch started = new CountDownLatch(1);	//Opened once the event loop exists, so stop() can reach it
+	
+	private final static int SESSION_TIMEOUT = 60000;		//Server mode forgets a session after a minute without packets
+	private final static int SWEEP_INTERVAL = 1000;
+	private final static int LINGER = 2000;					//Without --server, keep answering retransmitted FINs this long after the transfer completes
+	private final static int DEFAULT_MAX_WINDOW = 1024;
+	
+	private final static String USAGE = 
+			"edu.metrostate.Receiver [OPTION]... [FILE] [RECEIVER_IP_ADDRESS] [RECEIVER_PORT]";
+	private final static String HEADER = 
+			"\nReceiver receives packets and assembles them into a file.\n\n";
+	private final static String FOOTER = 
+			"\nUnsupported - Use at your own risk.";
+	
+	public Receiver(CommandLine line) {
+		String settings = "";
+		
+		HAS_DROP_RATE = line.hasOption("d");
+		
+		if (HAS_DROP_RATE) {
+			DROP_PERCENTAGE = Integer.parseInt(line.getOptionValue("d"));
+
+		} else {
+			DROP_PERCENTAGE = 0;
+		}
+		settings = settings.concat("\nDrop Rate: " + DROP_PERCENTAGE + "%");
+		
+		IMPAIRMENT = Impairment.parse(line.getOptionValue("I"), DROP_PERCENTAGE);
+		settings = settings.concat("\nImpairment: " + IMPAIRMENT);
+		
+		//Packets carry their own file offset, so any packet size up to this one is accepted
+		if (line.hasOption("s")) {
+			PACKET_SIZE = Integer.parseInt(line.getOptionValue("s"));
+		} else {
+			PACKET_SIZE = Packet.MAX_PACKET_SIZE;
+		}
+		if (PACKET_SIZE <= Packet.HEADER_SIZE || PACKET_SIZE > Packet.MAX_PACKET_SIZE) {
+			throw new IllegalArgumentException("Packet size must be between " + (Packet.HEADER_SIZE + 1) + " and " + Packet.MAX_PACKET_SIZE);
+		}
+		settings = settings.concat("\nMax Packet Size: " + PACKET_SIZE);
+		
+		//The sender asks for its window and window mode in the SYN, this only caps the window
+		if (line.hasOption("w")) {
+			WINDOW_SIZE = Integer.parseInt(line.getOptionValue("w"));
+		} else {
+			WINDOW_SIZE = DEFAULT_MAX_WINDOW;
+		}
+		if (WINDOW_SIZE < 1) {
+			throw new IllegalArgumentException("Window size must be at least 1");
+		}
+		settings = settings.concat("\nMax Window Size: " + WINDOW_SIZE);
+		
+		if (line.hasOption("c")) {
+			CHECKSUM = ChecksumType.parse(line.getOptionValue("c"));
+		} else {
+			CHECKSUM = ChecksumType.CRC32C;
+		}
+		settings = settings.concat("\nChecksum: " + CHECKSUM);
+		
+		if (line.hasOption("F")) {
+			FSYNC = FlushPolicy.parse(line.getOptionValue("F"));
+		} else {
+			FSYNC = FlushPolicy.NONE;
+		}
+		settings = settings.concat("\nFsync: " + FSYNC);
+		
+		if (line.hasOption("a")) {
+			ACK_EVERY = Integer.parseInt(line.getOptionValue("a"));
+		} else {
+			ACK_EVERY = 2;
+		}
+		if (ACK_EVERY < 1) {
+			throw new IllegalArgumentException("ACK frequency must be at least 1");
+		}
+		settings = settings.concat("\nACK Every: " + ACK_EVERY + " packets");
+		
+		if (line.hasOption("t")) {
+			ACK_DELAY = Integer.parseInt(line.getOptionValue("t"));
+		} else {
+			ACK_DELAY = 5;
+		}
+		settings = settings.concat("\nACK Delay: " + ACK_DELAY + "ms");
+		
+		SERVER = line.hasOption("S");
+		settings = settings.concat("\nServer Mode: " + SERVER);
+		
+		if (line.hasOption("i")) {
+			INTERVAL = Integer.parseInt(line.getOptionValue("i"));
+		} else {
+			INTERVAL = 1;
+		}
+		if (INTERVAL < 0) {
+			throw new IllegalArgumentException("Summary interval can't be negative");
+		}
+		settings = settings.concat("\nSummary Interval: " + INTERVAL + "s");
+		
+		log = new EventLog(line.hasOption("v"), System.out);
+		settings = settings.concat("\nPacket Trace: " + log.isEnabled());
+		
+		String[] reqArgs = line.getArgs();
+		FILE_PATH = reqArgs[0];
+		settings = settings.concat((SERVER ? "\nOutput Directory: " : "\nFile Path: ") + FILE_PATH);
+		
+		PORT = Integer.parseInt(reqArgs[2]);
+		settings = settings.concat("\nPort: " + PORT + "\n");
+		
+		System.out.println(settings);
+	}
+	
+	/*
+	 * Receives a file over UDP and stores it in a given destination file path
+	 * 
+	 * @param args	the command line arguments
+	 */
+    public static void main(final String args[]) throws Exception {
+    	
+    	final CommandLineParser parser = new DefaultParser();
+    	
+    	final Options options = options();
+    	
+    	//Set up commandline
+    	try {
+    		final CommandLine line = parser.parse(options, args);
+    		final String[] reqArgs = line.getArgs();
+    		
+    		if (line.hasOption("help") || reqArgs.length < 3) {
+    			showHelpAndExit(options);
+    		}
+    		
+    		//Create a new receiver and receive
+    		try {
+    			Receiver receiver = new Receiver(line);
+    			receiver.receive();
+    		} catch (final FileNotFoundException e) {
+                printError(e.getMessage());
+            } catch (final IOException e) {
+                printError(e.getMessage());
+            }
+    	} catch (final ParseException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            showHelpAndExit(options);
+    	}
+
+    }
+    	
+	
+	/*
+	 * The command line options of the receiver
+	 */
+	static final Options options() {
+		final Options options = new Options();
+		options.addOption("d", "drop", true, "the percentage (0-100) of datagrams to corrupt or drop, half each");
+		options.addOption("I", "impair", true, "simulated network conditions, e.g. drop=1,corrupt=1,dup=1,reorder=1,delay=20,jitter=5,burst=1:30,rate=10m,seed=7");
+		options.addOption("s", "size", true, "the largest packet to accept in bytes (default 65507), larger packets are dropped as corrupt");
+		options.addOption("w", "window", true, "the largest window to grant a sender (default 1024)");
+		options.addOption("c", "checksum", true, "the packet checksum, crc32c (default) or inet (16 bit Internet checksum), must match on both ends");
+		options.addOption("F", "fsync", true, "when to force received data to disk: none (default), fin (once the transfer is complete), every N bytes (e.g. 64m), every T ms (e.g. 500ms) or both (64m,500ms)");
+		options.addOption("a", "ack-every", true, "ACK every N in order packets, at most the window size (default 2)");
+		options.addOption("t", "ack-delay", true, "the longest time in ms to hold back an ACK for in order packets (default 5)");
+		options.addOption("S", "server", false, "keep running and accept many concurrent transfers, FILE is then the directory to save them in");
+		options.addOption("i", "interval", true, "the seconds between summary lines of the receiver metrics, 0 for only the final one (default 1)");
+		options.addOption("v", "verbose", false, "trace every packet, written out by a background thread");
+		options.addOption("h", "help", false, "shows this help");
+		return options;
+	}
+	
+	/*
+	 * Receives packets on PORT and hands each one to the session it belongs to, keyed by (address, port, session id).
+	 * Without --server the receiver stops LINGER after the first transfer completes, otherwise it runs until killed.
+	 * Every session is a small state machine driven from one event loop, so a slow client never blocks the others.
+	 * The metrics are on JMX while it runs, with a summary line every INTERVAL seconds that saw any traffic.
+	 */
+	void receive() throws Exception {
+		
+		//Create a DatagramChannel to listen on port and a buffer to hold received packets
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(PORT));
+		batcher = new DatagramBatcher(channel, DatagramBatcher.DEFAULT_BATCH_SIZE, Packet.SYN_SIZE, Math.max(PACKET_SIZE, Packet.SYN_SIZE));
+		finAck = new Packet(new byte[Packet.FIN_SIZE], CHECKSUM);
+		receivedPackets = new Packet[batcher.getBatchSize()];
+		for (int i = 0; i < receivedPackets.length; i++) {
+			receivedPackets[i] = new Packet(batcher.getReceiveBuffer(i), CHECKSUM);
+		}
+        loop = new EventLoop();
+        started.countDown();
+        sketchySocket = new SketchyServerSocket(batcher, IMPAIRMENT, -1, loop.getTimers(), metrics);	//Streams are 0 and up, -1 keeps the receiver's draws apart
+        loop.register(channel, this::receivePackets);
+        handOffSignal = loop.newSignal(this::handOffWrites);
+        loop.addBatcher(batcher);
+        
+        if (SERVER) {
+        	new File(FILE_PATH).mkdirs();
+        	sweepTimer = new TimerWheel.Timeout(this::expireIdleSessions);
+        	loop.getTimers().schedule(sweepTimer, System.nanoTime() + SWEEP_INTERVAL * 1_000_000L);
+        }
+        if (INTERVAL > 0) {
+        	summaryTimer = new TimerWheel.Timeout(this::printSummary);
+        	loop.getTimers().schedule(summaryTimer, System.nanoTime() + INTERVAL * 1_000_000_000L);
+        }
+        metrics.register("Receiver", String.valueOf(PORT));
+        log.message("Listening.");
+        
+        try {
+        	loop.run();
+        } finally {
+        	for (ReceiverSession session : sessions.values()) {
+        		session.close();
+        	}
+        	for (TransferFile transfer : transfers.values()) {
+        		transfer.close();
+        	}
+        	
+        	batcher.flush();
+        	log.message(batcher.summary(loop.getCpuNanos()));
+        	log.message(metrics.summary());
+        	
+            log.message("Closing socket...");
+            loop.close();
+            channel.close();
+            sketchySocket.close();
+            batcher.close();
+            log.message(BufferPool.SHARED.summary());
+            log.message("Socket Closed.");
+            log.close();
+            metrics.unregister();
+        }
+    }
+	
+	/*
+	 * Makes receive() return as soon as the current batch is handled, from any thread. Waits for receive() to have started.
+	 */
+	void stop() throws InterruptedException {
+		started.await();
+		loop.stop();
+	}
+	
+	/*
+	 * Handles a batch of datagrams waiting on the channel. The ACKs they trigger go out together when the event loop flushes the batcher.
+	 */
+	private void receivePackets() throws IOException {
+		int count = batcher.receive();
+		for (int i = 0; i < count; i++) {
+			metrics.packetReceived();
+			handlePacket(receivedPackets[i], (InetSocketAddress) batcher.getSource(i), batcher.getLength(i));
+		}
+	}
+	
+	/*
+	 * Gives every transfer's writer the payloads staged for it so far. Runs when a writer has caught up, which is after
+	 * the batch that kept it waiting has been handled, so the whole batch goes to disk in as few writes as it can.
+	 */
+	private void handOffWrites() {
+		for (TransferFile transfer : transfers.values()) {
+			transfer.handOff();
+		}
+	}
+	
+	/*
+	 * Checks a received packet and passes it to its session, starting a new session for the first packet of a transfer
+	 */
+	private void handlePacket(Packet receivedPacket, InetSocketAddress from, int length) throws IOException {
+        //A corrupted packet can't be trusted to name its session, so it is dropped here
+        if (!receivedPacket.isValidPacket(length)) {
+        	metrics.corruption();
+        	log.received("RECV", receivedPacket.getSeqno(), "CRPT");
+        	return;
+        }
+        
+        probe.set(from, receivedPacket.getSession());
+        ReceiverSession session = sessions.get(probe);
+        
+        if (session == null) {
+        	//The FIN-ACK got lost, the sender is still waiting for one
+        	if (receivedPacket.getType() == Packet.FIN && closedSessions.containsKey(probe)) {
+        		finAck.packFin(Packet.FIN_ACK, receivedPacket.getSession(), 0);
+        		sketchySocket.send(finAck, from);
+        		return;
+        	}
+        	
+        	//Only a SYN can start a session
+        	if (receivedPacket.getType() != Packet.SYN || closedSessions.containsKey(probe)) {
+        		return;
+        	}
+        	SessionKey transferKey = new SessionKey();
+        	transferKey.set(new InetSocketAddress(from.getAddress(), 0), receivedPacket.getSession());
+        	
+        	//Without --server only the streams of the first transfer are accepted
+        	if (!SERVER && (lingerTimer != null || (!transfers.isEmpty() && !transfers.containsKey(transferKey)))) {
+        		return;
+        	}
+        	session = openSession(probe, transferKey, receivedPacket);
+        	if (session == null) {
+        		return;
+        	}
+        }
+        
+        session.handle(receivedPacket);
+        
+        if (session.isClosed()) {
+        	SessionKey key = probe.copy();
+        	sessions.remove(key);
+        	closedSessions.put(key, System.currentTimeMillis());
+        	if (session.getTransfer().isClosed()) {
+        		transfers.values().remove(session.getTransfer());
+        		if (!SERVER) {
+        			lingerTimer = new TimerWheel.Timeout(loop::stop);
+        			loop.getTimers().schedule(lingerTimer, System.nanoTime() + LINGER * 1_000_000L);
+        		}
+        	}
+        }
+	}
+	
+	/*
+	 * Starts a new session for the SYN of a stream, opening the transfer's file at its full length if this is its first stream.
+	 * The session gets the sender's window mode and the smaller of the sender's and this receiver's packet size and window.
+	 * In server mode each transfer gets its own file in the output directory.
+	 * Otherwise the file is resumable, journaled in blocks of the first stream's payload size, and a stream whose range starts
+	 * with blocks an earlier run already received begins at the first packet after them.
+	 * Returns null for a SYN with an unknown window mode, a packet size with no room for a payload, a window below 1,
+	 * or a range that isn't in the file.
+	 */
+	private ReceiverSession openSession(SessionKey key, SessionKey transferKey, Packet syn) throws IOException {
+		int session = transferKey.session;
+		WindowMode mode = syn.getMode();
+		if (mode == null || syn.getPacketSize() <= Packet.HEADER_SIZE || syn.getWindowSize() < 1
+				|| syn.getRangeStart() < 0 || syn.getRangeStart() > syn.getRangeEnd() || syn.getRangeEnd() > syn.getFileLength()) {
+			return null;
+		}
+		
+		int packetSize = Math.min(PACKET_SIZE, syn.getPacketSize());
+		int windowSize = Math.min(WINDOW_SIZE, syn.getWindowSize());
+		TransferFile transfer = transfers.get(transferKey);
+		if (transfer == null) {
+			File file;
+			if (SERVER) {
+				file = new File(FILE_PATH, transferKey.address.getAddress().getHostAddress() + "-" + Integer.toHexString(session));
+			} else {
+				file = new File(FILE_PATH);
+			}
+			transfer = new TransferFile(file, syn.getFileLength(), packetSize - Packet.HEADER_SIZE, !SERVER, FSYNC, handOffSignal, log);
+			transfers.put(transferKey, transfer);
+		}
+		
+		long firstSeqno = transfer.resumablePackets(syn.getRangeStart(), packetSize - Packet.HEADER_SIZE);
+		log.message("New session " + Integer.toHexString(session) + " from " + key.address + ": " + syn.getFileLength() + " bytes, stream "
+				+ (syn.getAckno() + 1) + " of " + syn.getStreamCount() + ", packet size " + packetSize + ", window " + windowSize + " " + mode
+				+ (firstSeqno > 0 ? ", resuming at packet " + firstSeqno : ""));
+		boolean compressed = syn.isCompressed();
+		int fecGroup = (mode == WindowMode.SELECTIVE_REPEAT && !compressed) ? syn.getFecGroup() : 0;
+		//A digest packet has to hold at least one digest
+		boolean verified = syn.isVerified() && packetSize >= Packet.HEADER_SIZE + MerkleTree.HASH_SIZE;
+		ReceiverSession receiverSession = new ReceiverSession(session, key.address, transfer, syn.getRangeStart(), syn.getRangeEnd(), firstSeqno,
+				packetSize, windowSize, mode, fecGroup, compressed, verified, CHECKSUM, ACK_EVERY, ACK_DELAY * 1_000_000L, loop.getTimers(), sketchySocket, metrics, log);
+		sessions.put(key.copy(), receiverSession);
+		return receiverSession;
+	}
+	
+	/*
+	 * Closes sessions whose sender went away without sending FIN, and the files of transfers that stopped with them,
+	 * then checks again after SWEEP_INTERVAL
+	 */
+	private void expireIdleSessions() {
+		long now = System.currentTimeMillis();
+		Iterator<ReceiverSession> it = sessions.values().iterator();
+		
+		while (it.hasNext()) {
+			ReceiverSession session = it.next();
+			if (now - session.getLastActivity() > SESSION_TIMEOUT) {
+				log.message("Session timed out.");
+				try {
+					session.close();
+				} catch (IOException e) {
+					printError(e.getMessage());
+				}
+				it.remove();
+			}
+		}
+		
+		Iterator<TransferFile> files = transfers.values().iterator();
+		while (files.hasNext()) {
+			TransferFile transfer = files.next();
+			if (now - transfer.getLastActivity() > SESSION_TIMEOUT) {
+				try {
+					transfer.close();
+				} catch (IOException e) {
+					printError(e.getMessage());
+				}
+				files.remove();
+			}
+		}
+		closedSessions.values().removeIf(closedAt -> now - closedAt > SESSION_TIMEOUT);
+		loop.getTimers().schedule(sweepTimer, System.nanoTime() + SWEEP_INTERVAL * 1_000_000L);
+	}
+    
+	/*
+	 * Prints the metrics if anything was sent or received since the last summary, then checks again after INTERVAL
+	 */
+	private void printSummary() {
+		if (metrics.getActivity() != lastActivity) {
+			lastActivity = metrics.getActivity();
+			log.message(metrics.summary());
+		}
+		loop.getTimers().schedule(summaryTimer, System.nanoTime() + INTERVAL * 1_000_000_000L);
+	}
+	
+	/*
+	 * Shows the help info and exits the program
+	 */
+	private static final void showHelpAndExit(final Options pOptions) {
+		final HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(USAGE, HEADER, pOptions, FOOTER);
+		System.exit(1);
+	}
+	
+	/*
+	 * Makes errors look pretty
+	 */
+	private static final void printError(final String error) {
+        System.err.println();
+        System.err.println("**********************************************************************");
+        System.err.println();
+        System.err.println(error);
+        System.err.println();
+        System.err.println("**********************************************************************");
+        System.err.println();
+	}	
+	
+	/*
+	 * Identifies a session by the sender's address and port plus the session id it picked.
+	 * The receive loop reuses one mutable probe for lookups so only new sessions allocate a key.
+	 */
+	private static final class SessionKey {
+		private InetSocketAddress address;
+		private int session;
+		
+		void set(InetSocketAddress pAddress, int pSession) {
+			address = pAddress;
+			session = pSession;
+		}
+		
+		SessionKey copy() {
+			SessionKey key = new SessionKey();
+			key.set(address, session);
+			return key;
+		}
+		
+		@Override
+		public int hashCode() {
+			return address.hashCode() * 31 + session;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SessionKey)) {
+				return false;
+			}
+			SessionKey other = (SessionKey) o;
+			return session == other.session && address.equals(other.address);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,396 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/*
+ * The receiving end of one stream of a transfer: tracks which packets have arrived, writes them
+ * to the transfer's output file at their offsets and ACKs them. The Receiver owns the socket and hands
+ * each valid packet to the session it belongs to, so many sessions can share one port.
+ *
+ * ACKs are cumulative with a SACK bitmap of the early packets and are delayed: in order packets
+ * are ACKed every ackEvery packets or after ackDelay, whichever comes first. Anything out of order
+ * is ACKed right away so the sender learns about the hole.
+ *
+ * The session is opened by the stream's SYN with the packet size and window the Receiver accepted,
+ * and every copy of the SYN is answered with a SYN-ACK, which tells the sender the first seqno and offset the receiver wants:
+ * packets before it were already written by an earlier run of an interrupted transfer. A FIN ends it and is answered with a FIN-ACK.
+ *
+ * If the SYN asks for forward error correction in Selective Repeat, the packets of each parity group are XORed together
+ * as they are written, along with the group's parity packet. When only one packet of a group is missing it is rebuilt
+ * from that and handled as if it had arrived, without waiting for the sender to time out and resend it.
+ *
+ * A compressed packet is inflated before anything else, so from then on it is handled like any other. One that doesn't
+ * inflate is dropped like a corrupt one and left for the sender to resend.
+ *
+ * If the SYN asks for verification the session keeps a MerkleTree of its range, which the transfer's writer fills in as
+ * the range reaches the file, and a FIN carries the sender's root. The FIN isn't answered until every leaf is hashed, the
+ * sender resends it. A root that differs is answered with a digest ACK instead of a FIN-ACK and the sender narrows it down
+ * with digest packets, each answered with the nodes of it that differ here, before it sends the leaves that differ again
+ * as new packets. Those are written over what is there without being counted again, and without parity.
+ */
+public class ReceiverSession {
+
+	private final int session;
+	private final SocketAddress address;
+	private final TransferFile transfer;
+	private final int packetSize;
+	private final int windowSize;
+	private final long rangeStart;							//File offset of seqno 0, where a rebuilt packet's offset comes from
+	private final long rangeEnd;							//Nothing is written outside [rangeStart, rangeEnd)
+	private final int fecGroup;								//Packets per parity group, 0 without forward error correction
+	private final ParityGroup[] parityGroups;				//The groups that can still have packets in the window, indexed by group % length
+	private final BlockCompressor compressor;				//Inflates compressed packets, null if the SYN didn't ask for compression
+	private final MerkleTree tree;							//Digests of the range as written, null if the SYN didn't ask for verification
+	private final WindowMode mode;
+	private final SketchyServerSocket sketchySocket;
+	private final Packet ack;								//Also holds the SYN-ACK and FIN-ACK
+	private final boolean[] written;						//Selective Repeat record of early packets already written, indexed by seqno % windowSize
+	private final int ackEvery;
+	private final long ackDelay;							//Nanoseconds
+	private final TimerWheel timers;
+	private final TimerWheel.Timeout ackTimer;				//Sends the delayed ACK
+	private final TransferMetrics metrics;
+	private final EventLog log;
+	private int unacked = 0;								//In order packets received since the last ACK
+	private final long firstSeqno;							//Where the stream resumes, 0 unless the file already has the start of its range
+	private long curAckno;									//Next packet expected in order
+	private long repairFrom = Long.MAX_VALUE;				//First seqno sent to repair the range, after its root differed
+	private long bytesReceived;
+	private long lastActivity;
+	private boolean closed = false;
+	private boolean error = false;
+
+	/*
+	 * ackEvery is capped at the window size, the sender can't have more than a window in flight to trigger the ACK.
+	 * The stream's range ends at pRangeEnd, everything before the first seqno's offset is already in the file.
+	 */
+	public ReceiverSession(int pSession, SocketAddress pAddress, TransferFile pTransfer, long pRangeStart, long pRangeEnd, long pFirstSeqno, int pPacketSize, int pWindowSize,
+			WindowMode pMode, int pFecGroup, boolean compressed, boolean verified, ChecksumType checksum, int pAckEvery, long pAckDelay, TimerWheel pTimers,
+			SketchyServerSocket pSketchySocket, TransferMetrics pMetrics, EventLog pLog) throws IOException {
+		this.session = pSession;
+		this.address = pAddress;
+		this.transfer = pTransfer;
+		this.rangeStart = pRangeStart;
+		this.rangeEnd = pRangeEnd;
+		this.firstSeqno = pFirstSeqno;
+		this.curAckno = pFirstSeqno;
+		this.packetSize = pPacketSize;
+		this.windowSize = pWindowSize;
+		this.mode = pMode;
+		this.fecGroup = pFecGroup;
+		if (fecGroup > 0) {
+			//The window spans at most windowSize / fecGroup + 1 groups, one more lets a group's late parity packet find it
+			this.parityGroups = new ParityGroup[windowSize / fecGroup + 2];
+			for (int i = 0; i < parityGroups.length; i++) {
+				parityGroups[i] = new ParityGroup(packetSize - Packet.HEADER_SIZE);
+			}
+		} else {
+			this.parityGroups = null;
+		}
+		this.compressor = compressed ? new BlockCompressor(packetSize - Packet.HEADER_SIZE) : null;
+		if (verified) {
+			this.tree = new MerkleTree(rangeStart, rangeEnd, true);
+			transfer.addDigest(tree, Math.min(rangeEnd, rangeStart + firstSeqno * (packetSize - Packet.HEADER_SIZE)));
+		} else {
+			this.tree = null;
+		}
+		this.sketchySocket = pSketchySocket;
+		this.ack = new Packet(new byte[Packet.SYN_SIZE], checksum);
+		this.written = new boolean[windowSize];
+		this.ackEvery = Math.max(1, Math.min(pAckEvery, windowSize));
+		this.ackDelay = pAckDelay;
+		this.timers = pTimers;
+		this.ackTimer = new TimerWheel.Timeout(this::sendAck);
+		this.lastActivity = System.currentTimeMillis();
+		this.metrics = pMetrics;
+		this.log = pLog;
+	}
+
+	/*
+	 * Handles a packet that has already passed its checksum and belongs to this session.
+	 * The packet's buffer must hold the whole datagram, since the payload is written from it.
+	 */
+	public void handle(Packet packet) throws IOException {
+		lastActivity = System.currentTimeMillis();
+		transfer.touch();
+
+		if (packet.getType() == Packet.SYN) {
+			ack.packSyn(Packet.SYN_ACK, session, firstSeqno, packet.getFileLength(), rangeStart + firstSeqno * (packetSize - Packet.HEADER_SIZE),
+					packet.getRangeEnd(), packetSize, windowSize, packet.getStreamCount(), mode, fecGroup,
+					(byte) ((compressor != null ? Packet.COMPRESSED : 0) | (tree != null ? Packet.VERIFY : 0)));
+			sendControl("SYN-ACK");
+			return;
+		} else if (packet.getType() == Packet.FIN) {
+			log.message("Received FIN.");
+			if (tree != null && !closed && packet.hasRoot()) {
+				if (tree.root() == null) {
+					//Not all written and hashed yet, the sender will ask again
+					transfer.handOff();
+					return;
+				}
+				if (tree.mismatches(tree.getTop(), 0, 1, packet.getBuffer(), Packet.FIN_SIZE) != 0) {
+					log.message("The range differs from the sender's, asking where...");
+					repairFrom = Math.min(repairFrom, curAckno);
+					ack.packDigestAck(session, tree.getTop(), 0, 1, 1);
+					sendControl("DIGEST-ACK");
+					return;
+				}
+			}
+			if (!closed) {
+				close();
+				transfer.streamClosed(packet.getAckno());
+			}
+			ack.packFin(Packet.FIN_ACK, session, 0);
+			sendControl("FIN-ACK");
+			return;
+		} else if (packet.getType() == Packet.DIGEST) {
+			if (tree != null && !closed) {
+				long mismatches = tree.mismatches(packet.getLevel(), packet.getIndex(), packet.getAckno(), packet.getBuffer(), Packet.HEADER_SIZE);
+				ack.packDigestAck(session, packet.getLevel(), packet.getIndex(), packet.getAckno(), mismatches);
+				sendControl("DIGEST-ACK");
+			}
+			return;
+		} else if (packet.getType() == Packet.PARITY) {
+			if (fecGroup > 0) {
+				receiveParity(packet);
+			}
+			return;
+		} else if (packet.getType() != Packet.DATA) {
+			return;
+		}
+
+		long seqno = packet.getSeqno(curAckno);
+		ByteBuffer payload = packet.getBuffer();
+		payload.limit(packet.getLen()).position(Packet.HEADER_SIZE);
+		if (packet.isCompressed() && compressor != null) {
+			try {
+				receiveData(seqno, compressor.inflate(payload), packet.getOffset());
+			} catch (DataFormatException e) {
+				metrics.corruption();
+				log.received("RECV", seqno, "CRPT");
+			}
+		} else {
+			receiveData(seqno, payload, packet.getOffset());
+		}
+		payload.clear();
+		if (fecGroup > 0 && seqno < repairFrom) {
+			recover(seqno);
+		}
+	}
+
+	/*
+	 * Writes the payload of a data packet, received or rebuilt, if it is new and ACKs it.
+	 * payload runs from its position to its limit.
+	 */
+	private void receiveData(long seqno, ByteBuffer payload, long offset) throws IOException {
+		if (!inRange(offset, payload.remaining())) {
+			metrics.corruption();
+			log.received("RECV", seqno, "!Rng");
+			return;
+		}
+		if (seqno == curAckno) {
+			//Write the data from the packet to the file, then skip over early packets that were already written
+			bytesReceived += writePacket(seqno, payload, offset);
+			curAckno++;
+			unacked++;
+
+			boolean filledHole = written[slot(curAckno)];
+			while (written[slot(curAckno)]) {
+				written[slot(curAckno)] = false;
+				curAckno++;
+			}
+
+			if (filledHole || unacked >= ackEvery) {
+				sendAck();
+			} else if (!ackTimer.isScheduled()) {
+				timers.schedule(ackTimer, System.nanoTime() + ackDelay);
+			}
+		} else if (mode == WindowMode.SELECTIVE_REPEAT && seqno > curAckno && seqno < curAckno + windowSize) {
+			//Early packet, it can be written at its own offset right away
+			log.received("RECV", seqno, "Buff");
+			if (!written[slot(seqno)]) {
+				bytesReceived += writePacket(seqno, payload, offset);
+				written[slot(seqno)] = true;
+			}
+			sendAck();
+		} else {
+			//A duplicate means our ACK was lost, a Go-Back-N packet past a hole is discarded. Either way the sender needs the current state.
+			metrics.duplicate();
+			log.received("DUPL", seqno, "!Seq");
+			error = true;
+			sendAck();
+		}
+	}
+
+	/*
+	 * Whether count bytes at offset lie in the stream's range and the file. The offset comes from the packet, or from the
+	 * seqno for a rebuilt one, and any datagram that passes the checksum with this session's id, a stray one from an earlier
+	 * session with the same id say, would otherwise write wherever it likes or grow the file past its length.
+	 */
+	private boolean inRange(long offset, int count) {
+		return offset >= rangeStart && offset <= Math.min(rangeEnd, transfer.getLength()) - count;
+	}
+
+	/*
+	 * Ends the session. The transfer's file stays open for its other streams.
+	 */
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			timers.cancel(ackTimer);
+			if (compressor != null) {
+				compressor.close();
+			}
+			if (parityGroups != null) {
+				for (ParityGroup group : parityGroups) {
+					group.close();
+				}
+			}
+			if (tree != null) {
+				transfer.removeDigest(tree);
+			}
+			log.message("Session " + Integer.toHexString(session) + " " + address + ": " + bytesReceived / 1000 + " KB received");
+		}
+	}
+
+	/*
+	 * Queues a payload from the datagram buffer to be written at its offset in the file, XORing it into its parity group first.
+	 * Returns the number of bytes written. Each packet is only written once, so this is the receiver's goodput.
+	 * A packet repairing the range is written over what is there and isn't counted.
+	 */
+	private int writePacket(long seqno, ByteBuffer payload, long offset) throws IOException {
+		if (seqno >= repairFrom) {
+			return transfer.rewrite(payload, offset);
+		}
+		if (fecGroup > 0) {
+			ParityGroup group = parityGroup(seqno / fecGroup);
+			if (group != null && !group.isDone()) {
+				group.add(payload, payload.position(), payload.remaining());
+			}
+		}
+		int count = transfer.write(payload, offset);
+		metrics.delivered(count);
+		return count;
+	}
+
+	/*
+	 * XORs a parity packet into its group, unless the group is already over or the parity doesn't fit in the window
+	 */
+	private void receiveParity(Packet packet) throws IOException {
+		long first = packet.getSeqno(curAckno);
+		int count = packet.getAckno();
+		if (first < 0 || count < 1 || count > fecGroup || first / fecGroup != (first + count - 1) / fecGroup
+				|| first + count <= curAckno || first >= curAckno + windowSize || packet.getDataLength() > packetSize - Packet.HEADER_SIZE) {
+			return;
+		}
+		ParityGroup group = parityGroup(first / fecGroup);
+		if (group == null || group.hasParity() || group.isDone()) {
+			return;
+		}
+		group.addParity(packet.getBuffer(), Packet.HEADER_SIZE, packet.getDataLength(), packet.getLengths(), first, count);
+		recover(first);
+	}
+
+	/*
+	 * Rebuilds the one missing packet of seqno's parity group, if the parity and all the others are in
+	 */
+	private void recover(long seqno) throws IOException {
+		ParityGroup group = parityGroup(seqno / fecGroup);
+		if (group == null || !group.canRecover()) {
+			return;
+		}
+		group.setDone();
+		for (long missing = group.getFirst(); missing < group.getFirst() + group.getExpected(); missing++) {
+			if (missing >= curAckno && !written[slot(missing)]) {
+				metrics.recovered();
+				log.received("RECV", missing, "FEC");
+				receiveData(missing, group.getMissing(), rangeStart + missing * (packetSize - Packet.HEADER_SIZE));
+				return;
+			}
+		}
+	}
+
+	/*
+	 * The slot of a parity group, taken over if it still holds an older group. Returns null for a group older than the slot's.
+	 */
+	private ParityGroup parityGroup(long index) {
+		ParityGroup group = parityGroups[(int) (index % parityGroups.length)];
+		if (group.getGroup() < index) {
+			group.reset(index);
+		}
+		return group.getGroup() == index ? group : null;
+	}
+
+	/*
+	 * ACKs everything before curAckno plus the early packets written so far, which also covers any delayed ACK
+	 */
+	private void sendAck() {
+		ack.packAck(session, curAckno, sackBits());
+		unacked = 0;
+		timers.cancel(ackTimer);
+
+		try {
+			String status1 = error ? "ReSend." : "SENDing";
+			int result = sketchySocket.send(ack, address);
+
+			if (result == 1) {
+				log.ackSent(status1, curAckno, "DROP");
+			} else if (result == 2) {
+				log.ackSent(status1, curAckno, "ERR");
+			} else {
+				log.ackSent(status1, curAckno, "SENT");
+				error = false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Sends the SYN-ACK, FIN-ACK or digest ACK packed into the ack packet
+	 */
+	private void sendControl(String name) {
+		try {
+			int result = sketchySocket.send(ack, address);
+			log.control("SENDing", name, result == 1 ? "DROP" : result == 2 ? "ERR" : "SENT");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Bit i is set when packet curAckno + 1 + i has been written early. Only the receive window can hold early packets.
+	 */
+	private long sackBits() {
+		long sack = 0;
+		int n = Math.min(Packet.SACK_BITS, windowSize - 1);
+		for (int i = 0; i < n; i++) {
+			if (written[slot((curAckno + 1 + i))]) {
+				sack |= 1L << i;
+			}
+		}
+		return sack;
+	}
+
+	/*
+	 * The slot of a seqno in the written ring
+	 */
+	private int slot(long seqno) {
+		return (int) (seqno % windowSize);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	public TransferFile getTransfer() {
+		return transfer;
+	}
+}
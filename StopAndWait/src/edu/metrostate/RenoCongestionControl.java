@@ -0,0 +1,56 @@
+package edu.metrostate;
+
+/*
+ * AIMD congestion control as in TCP Reno (RFC 5681): slow start doubles the window every RTT up to
+ * ssthresh, congestion avoidance then adds one packet per RTT. A loss halves the window, a timeout
+ * drops it to one packet and starts over in slow start.
+ */
+public class RenoCongestionControl implements CongestionControl {
+
+	protected static final double INITIAL_WINDOW = 4;
+	protected static final double MIN_SSTHRESH = 2;
+
+	protected final int maxWindow;
+	protected double cwnd = INITIAL_WINDOW;
+	protected double ssthresh = Double.MAX_VALUE;
+
+	/*
+	 * The window never grows past maxWindow, the Sender couldn't fill it anyway
+	 */
+	public RenoCongestionControl(int pMaxWindow) {
+		this.maxWindow = pMaxWindow;
+		this.cwnd = Math.min(cwnd, maxWindow);
+	}
+
+	@Override
+	public void onAck(int packets, long now, long srtt) {
+		if (inSlowStart()) {
+			cwnd += packets;
+		} else {
+			cwnd += packets / cwnd;
+		}
+		cwnd = Math.min(cwnd, maxWindow);
+	}
+
+	@Override
+	public void onLoss(long now) {
+		ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+		cwnd = ssthresh;
+	}
+
+	@Override
+	public void onTimeout(long now) {
+		ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+		cwnd = 1;
+	}
+
+	@Override
+	public int getWindow() {
+		return Math.max(1, (int) cwnd);
+	}
+
+	@Override
+	public boolean inSlowStart() {
+		return cwnd < ssthresh;
+	}
+}
@@ -0,0 +1,78 @@
+package edu.metrostate;
+
+/*
+ * Computes the retransmission timeout from measured round trip times as described in RFC 6298
+ * (Jacobson/Karels smoothed RTT and RTT variance), with exponential backoff on timeouts.
+ *
+ * Karn's algorithm is up to the caller: samples must only be taken from packets that were sent once,
+ * since the ACK of a retransmitted packet can't be matched to a particular send.
+ * All times are in nanoseconds.
+ */
+public class RttEstimator {
+
+	private static final long MIN_RTO = 20_000_000L;			//20 ms. RFC 6298 asks for 1 s, which would throw away most of the gain on a LAN.
+	private static final long MAX_RTO = 60_000_000_000L;		//60 s
+	private static final long GRANULARITY = 1_000_000L;			//1 ms, the clock granularity G
+	private static final int K = 4;
+
+	private long srtt;
+	private long rttvar;
+	private long rto;
+	private boolean hasSample = false;
+
+	public RttEstimator(long initialRto) {
+		this.rto = initialRto;
+	}
+
+	/*
+	 * Feeds a new round trip measurement into the estimate and recomputes the RTO, which also clears any backoff
+	 */
+	public void sample(long rtt) {
+		if (!hasSample) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+			hasSample = true;
+		} else {
+			//RTTVAR <- 3/4 * RTTVAR + 1/4 * |SRTT - R'|, then SRTT <- 7/8 * SRTT + 1/8 * R'
+			rttvar = rttvar - (rttvar >> 2) + (Math.abs(srtt - rtt) >> 2);
+			srtt = srtt - (srtt >> 3) + (rtt >> 3);
+		}
+		rto = clamp(srtt + Math.max(GRANULARITY, K * rttvar));
+	}
+
+	/*
+	 * Doubles the RTO after a retransmission timer expires
+	 */
+	public void backoff() {
+		rto = clamp(rto * 2);
+	}
+
+	/*
+	 * Drops any backoff once an ACK acknowledges new data, as Linux does. Under Karn's algorithm a burst of
+	 * timeouts leaves only retransmitted packets to be ACKed, so without this the backoff could never clear.
+	 */
+	public void resetBackoff() {
+		if (hasSample) {
+			rto = clamp(srtt + Math.max(GRANULARITY, K * rttvar));
+		}
+	}
+
+	private static long clamp(long value) {
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+	}
+
+	public long getRto() {
+		return rto;
+	}
+
+	/*
+	 * The smoothed RTT, or 0 before the first sample
+	 */
+	public long getSrtt() {
+		return srtt;
+	}
+
+	public long getRttvar() {
+		return rttvar;
+	}
+}
@@ -0,0 +1,270 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The read and encode stage of a SenderStream. A thread of its own reads (or compresses) the stream's range out of
+ * the file into pooled packets and packs their headers and checksums, in seqno order and ahead of the window.
+ * The stream's event loop, the transmit stage, takes the finished packets into its window and sends them.
+ * So a page fault on a file bigger than the page cache, or a slow deflate, stalls this thread and not the loop
+ * that is handling ACKs and timers, and a transfer runs at the speed of its slowest stage rather than their sum.
+ *
+ * Packets go round two SpscQueues: ready carries encoded segments to the loop, free carries them back once the
+ * window slot they were sent from is reused, i.e. once they have been acknowledged. The pool holds a window's worth
+ * plus READ_AHEAD bytes of packets, which bounds how far ahead this stage runs; when free is empty it parks until
+ * the loop returns a segment. When ready is empty the loop goes on with other work and is signalled when the next
+ * segment is ready, so neither side ever blocks the other.
+ *
+ * With verification this thread also hashes the range into the stream's MerkleTree as it reads it, through a reader of
+ * its own, and raises the ready signal once the tree is done. Ranges the receiver found different are handed back with
+ * repair() and read again the same way, after the range itself; the thread waits for them until the stage is stopped.
+ */
+public class SendPipeline implements Runnable {
+
+	private static final int READ_AHEAD = 4 * 1024 * 1024;	//Bytes of packets encoded ahead of the window
+	private static final int MIN_READ_AHEAD = 16;			//Packets, however large they are
+
+	private final MappedFileReader reader;
+	private final int session;
+	private final ConcurrentLinkedQueue<long[]> repairs = new ConcurrentLinkedQueue<>();	//Ranges to read again, from the loop
+	private final SpscQueue<Segment> ready;
+	private final SpscQueue<Segment> free;
+	private final Segment[] segments;						//The whole pool, to give back once the stage is stopped
+	private final EventLoop.Signal readySignal;			//Raised when a segment is ready while the loop is waiting for one
+	private final Thread thread;
+	private volatile boolean loopWaiting = false;
+	private volatile boolean producerWaiting = false;
+	private volatile boolean stopped = false;
+	private volatile IOException failure;
+	private int payloadSize;								//Set by start(), read by the stage's thread only
+	private BlockCompressor compressor;
+	private MerkleTree tree;								//null without verification
+	private MappedFileReader treeReader;
+	private long seqno;
+	private long offset;
+	private long end;										//Of the range being read, the stream's or one being repaired
+	private long stalls;									//Times the loop had room in its window but nothing ready to send
+	private boolean flowing = false;						//The first segment has been taken, waiting for it isn't a stall
+
+	/*
+	 * An encoded packet and how much of the file it covers, which is more than its payload if it is compressed
+	 */
+	public static final class Segment {
+		private final Packet packet;
+		private int rawLength;
+
+		private Segment(Packet pPacket) {
+			packet = pPacket;
+		}
+
+		public Packet getPacket() {
+			return packet;
+		}
+
+		public int getRawLength() {
+			return rawLength;
+		}
+	}
+
+	/*
+	 * Borrows buffers from the BufferPool for windowSize packets of packetSize in flight plus the read ahead. Nothing is read until start().
+	 */
+	public SendPipeline(MappedFileReader pReader, int pSession, long pEnd, int packetSize, int windowSize, ChecksumType checksum,
+			EventLoop loop, Runnable onReady, String name) {
+		this.reader = pReader;
+		this.session = pSession;
+		this.end = pEnd;
+		int pool = windowSize + Math.max(MIN_READ_AHEAD, READ_AHEAD / packetSize);
+		this.ready = new SpscQueue<>(pool);
+		this.free = new SpscQueue<>(pool);
+		this.segments = new Segment[pool];
+		for (int i = 0; i < pool; i++) {
+			segments[i] = new Segment(new Packet(BufferPool.SHARED.borrow(packetSize), checksum));
+			free.offer(segments[i]);
+		}
+		this.readySignal = loop.newSignal(onReady);
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/*
+	 * Starts encoding from seqno pSeqno at file offset pOffset, with the payload size the handshake settled on,
+	 * through compressor if it isn't null, and hashing the whole range into pTree if that isn't null
+	 */
+	public void start(long pSeqno, long pOffset, int pPayloadSize, BlockCompressor pCompressor, MerkleTree pTree) {
+		seqno = pSeqno;
+		offset = pOffset;
+		payloadSize = pPayloadSize;
+		compressor = pCompressor;
+		tree = pTree;
+		if (tree != null) {
+			treeReader = new MappedFileReader(reader);
+		}
+		thread.start();
+	}
+
+	/*
+	 * The stage's thread: encodes segments of the range and then of any ranges to repair, until the stage is stopped
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				if (offset >= end) {
+					nextRange();
+					continue;
+				}
+				Segment segment = free.poll();
+				if (segment == null) {
+					//Backpressure: the window and the read ahead are full, wait for the loop to hand a segment back
+					producerWaiting = true;
+					if (free.isEmpty()) {
+						LockSupport.park(this);
+					}
+					producerWaiting = false;
+					continue;
+				}
+
+				encode(segment);
+				ready.offer(segment);
+				if (loopWaiting) {
+					loopWaiting = false;
+					readySignal.raise();
+				}
+				if (tree != null) {
+					//At most twice what was read, so a resumed stream's tree catches up without holding the reading up
+					tree.hash(treeReader, offset, 2L * segment.rawLength);
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+			readySignal.raise();
+		}
+	}
+
+	/*
+	 * Once the range being read is done: moves on to the next range to repair, or finishes the tree, or waits for either
+	 * a repair or stop()
+	 */
+	private void nextRange() throws IOException {
+		long[] range = repairs.poll();
+		if (range != null) {
+			offset = range[0];
+			end = range[1];
+		} else if (tree != null && !tree.isHashed()) {
+			tree.hash(treeReader, tree.getEnd(), Long.MAX_VALUE);
+			readySignal.raise();
+		} else {
+			producerWaiting = true;
+			if (repairs.isEmpty() && !stopped) {
+				LockSupport.park(this);
+			}
+			producerWaiting = false;
+		}
+	}
+
+	/*
+	 * Loop thread only. Reads [start, pEnd) of the file again, after whatever is being read now, with the seqnos that follow.
+	 */
+	public void repair(long start, long pEnd) {
+		repairs.offer(new long[] { start, pEnd });
+		LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Reads the next segment of the file straight from the mapped file into the packet's buffer, or deflates as much
+	 * of the file as fits into it, then packs the header and checksum
+	 */
+	private void encode(Segment segment) throws IOException {
+		Packet packet = segment.packet;
+		int dataLength;
+		byte flags = 0;
+
+		if (compressor != null) {
+			dataLength = compressor.pack(reader, offset, end, packet.getBuffer(), Packet.HEADER_SIZE);
+			segment.rawLength = compressor.getRawLength();
+			flags = compressor.isCompressed() ? Packet.COMPRESSED : 0;
+		} else {
+			dataLength = (int) Math.min(payloadSize, end - offset);
+			reader.read(offset, packet.getBuffer(), Packet.HEADER_SIZE, dataLength);
+			segment.rawLength = dataLength;
+		}
+		packet.packData(session, seqno, offset, dataLength, flags);
+		offset += segment.rawLength;
+		seqno++;
+	}
+
+	/*
+	 * Loop thread only. The next segment in seqno order, or null if it isn't ready yet, in which case readySignal will be
+	 * raised when it is. Throws whatever stopped the stage's thread.
+	 */
+	public Segment poll() throws IOException {
+		Segment segment = ready.poll();
+		if (segment == null) {
+			loopWaiting = true;
+			segment = ready.poll();
+			if (segment == null) {
+				if (failure != null) {
+					throw failure;
+				}
+				if (flowing) {
+					stalls++;
+				}
+			}
+		} else {
+			flowing = true;
+		}
+		return segment;
+	}
+
+	/*
+	 * Loop thread only. Throws whatever stopped the stage's thread, for a loop that is waiting for the tree and not polling.
+	 */
+	public void checkFailure() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/*
+	 * Loop thread only. Hands a segment that is no longer needed back to the stage.
+	 */
+	public void release(Segment segment) {
+		free.offer(segment);
+		if (producerWaiting) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*
+	 * Loop thread only, once the loop is done with the window. Stops the stage's thread and waits for it, so the readers and
+	 * compressor can be closed, then gives the packets' buffers back to the pool.
+	 */
+	public void stop() {
+		stopped = true;
+		LockSupport.unpark(thread);
+		if (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i] != null) {
+				BufferPool.SHARED.release(segments[i].packet.getBuffer());
+				segments[i] = null;
+			}
+		}
+		treeReader = null;									//Shares the stream's reader, which the stream closes
+	}
+
+	/*
+	 * How often the transmit stage had to wait for this one, for the stream's closing summary
+	 */
+	public String summary() {
+		return "Read ahead: the window waited for the file " + stalls + " times";
+	}
+}
@@ -1,316 +1,338 @@
-package edu.metrostate;
-
-import java.io.*;
-
-
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-
-import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
-import org.apache.commons.cli.DefaultParser;
-import org.apache.commons.cli.HelpFormatter;
-import org.apache.commons.cli.Options;
-import org.apache.commons.cli.ParseException;
-
-/**
- * A program to act as a UDP sender
- * 
- * @author Gabriel
- * @author Dan
- * @author James
- * 
- * @see <a href="https://github.com/michaelknigge/pcldumper/blob/master/pcldumper/src/main/java/de/textmode/pcldumper/Main.java">CLIReference</a>
- * 
- */
-public class Sender {
-	
-	private final static int DEFAULT_PACKET_SIZE = 512;
-	private final int MAX_ACK_SIZE = 8;						//ACK packet shouldn't be bigger than 8 bytes
-	private final int PACKET_SIZE;
-	private final int PORT;
-	private final File FILE;
-	private final int DROP_PERCENTAGE;
-	private final int TIMEOUT;
-	private final boolean HAS_DROP_RATE;
-	private final boolean HAS_TIMEOUT;
-	private final boolean HAS_PACKET_SIZE;
-	private final String RECEIVER_ADDRESS;
-	private Packet[] packetArray;
-	private int curSeqno = 0;
-	private boolean error = false;
-	private final InetAddress destAddress;
-	private final DatagramSocket socket;
-    private final SketchyServerSocket sketchySocket;
-	
-	private final static String USAGE = 
-			"edu.metrostate.Sender [OPTION]... [FILE] [RECEIVER_IP_ADDRESS] [RECEIVER_PORT]";
-	private final static String HEADER = 
-			"\nSender breaks a file into packets and sends via UDP to a receiver.\n\n";
-	private final static String FOOTER = 
-			"\nUnsupported - Use at your own risk.";
-	
-	public Sender(CommandLine line) throws Exception {
-		String settings = "";
-		
-		HAS_DROP_RATE = line.hasOption("d");
-		HAS_TIMEOUT = line.hasOption("t");
-		HAS_PACKET_SIZE = line.hasOption("s");
-		
-		if (HAS_PACKET_SIZE) {
-			PACKET_SIZE = Integer.parseInt(line.getOptionValue("s"));
-		} else {
-			PACKET_SIZE = DEFAULT_PACKET_SIZE;
-		}
-		settings = settings.concat("\nPacket Size: " + PACKET_SIZE);
-		
-		if (HAS_TIMEOUT) {
-			TIMEOUT = Integer.parseInt(line.getOptionValue("t"));
-		} else {
-			TIMEOUT = 2000;
-		}
-		settings = settings.concat("\nTimeout: " + TIMEOUT);
-		
-		if (HAS_DROP_RATE) {
-			DROP_PERCENTAGE = Integer.parseInt(line.getOptionValue("d"));
-		} else {
-			DROP_PERCENTAGE = 0;
-		}
-		settings = settings.concat("\nDrop Rate: " + DROP_PERCENTAGE + "%");
-
-		String[] reqArgs = line.getArgs();
-		
-		FILE = new File(reqArgs[0]);
-		settings = settings.concat("\nFile: " + FILE);
-
-		RECEIVER_ADDRESS = reqArgs[1];
-		settings = settings.concat("\nReceiver Address: " + RECEIVER_ADDRESS);
-
-		PORT = Integer.parseInt(reqArgs[2]);
-		settings = settings.concat("\nPort: " + PORT + "\n");
-		
-		System.out.println(settings);
-		
-		destAddress = InetAddress.getByName(RECEIVER_ADDRESS);
-		socket = new DatagramSocket();
-        sketchySocket = new SketchyServerSocket(socket, DROP_PERCENTAGE);
-		socket.setSoTimeout(TIMEOUT);
-		
-		calculateNumPackets();
-		createPacketArray();
-	}
-	
-	/**
-	 * Runs as a command line argument to send a file via UDP given a file path and an address/port to send to.
-	 * @param args
-	 */
-	public static void main(String args[]) {
-		
-    	final CommandLineParser parser = new DefaultParser();
-    	
-    	final Options options = new Options();
-    	options.addOption("t", "timeout", true, "the timeout interval");
-    	options.addOption("s", "size", true, "the size of the packet up to 512 bytes");
-    	options.addOption("d", "drop", true, "the percentage (0-100) of datagrams to corrupt, delay, or drop");
-    	options.addOption("h", "help", false, "shows this help");
-    	
-    	try {
-    		final CommandLine line = parser.parse(options, args);
-    		final String[] reqArgs = line.getArgs();
-    		
-    		if (line.hasOption("help") || reqArgs.length < 3) {
-    			showHelpAndExit(options);
-    		}
-    		
-    		try {
-    			System.out.println("Creating new Sender...");
-    			Sender sender = new Sender(line);
-    			System.out.println("Sender creation successful");
-    			System.out.println("Begin sending...");
-    			sender.send();
-    			
-    		} catch (Exception e) {
-				printError(e.getMessage());
-				e.printStackTrace();
-			}
-    	} catch (final ParseException e) {
-            System.err.println(e.getMessage());
-            System.err.println();
-            showHelpAndExit(options);
-    	}
-    	
-	}
-		
-	private final void send() {
-		try {
-
-			
-			//Create a packet to send at the end to show that all packets have been sent (and hopefully received)
-			final DatagramPacket CLOSE = new DatagramPacket(new byte[0], 0, destAddress, PORT);
-
- 			while (curSeqno < packetArray.length && packetArray[curSeqno] != null) {
- 				
- 				sendPacket(packetArray[curSeqno], sketchySocket);
- 				
-			}
-			
-			//Send CLOSE
- 			System.out.println("Sending CLOSE packet...");
-			socket.send(CLOSE);
-			
- 			System.out.println("Closing connection...");
-			socket.close();
- 			System.out.println("Connection closed.");
-			
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		} 
-	}
-	
-	private static final void showHelpAndExit(Options pOptions) {
-		final HelpFormatter formatter = new HelpFormatter();
-		formatter.printHelp(USAGE, HEADER, pOptions, FOOTER);
-		System.exit(1);
-	}
-	
-	private static final void printError(final String error) {
-        System.err.println();
-        System.err.println("**********************************************************************");
-        System.err.println();
-        System.err.println(error);
-        System.err.println();
-        System.err.println("**********************************************************************");
-        System.err.println();
-	}
-	
-	/*
-	 * Breaks up the bytes from the file into packets and pushes them into the packet array
-	 */
-	private void createPacketArray() {
-		int i = 0;
-		try {
-			byte[] data = new byte[PACKET_SIZE - 12];
-			ByteBuffer byteBuff = ByteBuffer.wrap(data);
-			
-			
-			//Create a BufferedInputStream around a FileInputStream to pull the bytes from the file
-			FileInputStream fis = new FileInputStream(FILE);
-			BufferedInputStream bis = new BufferedInputStream(fis);
-			
-			//Read in the first data.length bytes
-			int bytesRead = bis.read(data);
-			
-			//Until there are no more bytes to be read, read in file data, break it up and pack it into packets
-			while (bytesRead != -1) {
-				if (bytesRead < PACKET_SIZE - 12) {
-					byte[] part = new byte[bytesRead];
-					
-					for (int j = 0; j < part.length; j++) {
-						part[j] = data[j];
-					}
-					
-					packetArray[i] = new Packet(part, i);
-				} else {
-				packetArray[i] = new Packet(data, i);
-				}
-				
-				byteBuff.clear();
-				bytesRead = bis.read(data);
-				i++;
-			}
-			
-			bis.close();
-		} catch (Exception e) {	
-			printError(e.getMessage());
-			e.printStackTrace();
-		}
-		
-	}
-	
-	/*
-	 * Calculates the number of packets needed to send the file and initializes the packet array
-	 */
-	private void calculateNumPackets() {
-		int numPackets = (int)Math.ceil(FILE.length() / (double)(PACKET_SIZE - 12));
-		packetArray = new Packet[numPackets];
-	}
-	
-	private boolean ackReceived(DatagramSocket socket) {
-		try {
-	        byte[] receiveData = new byte[MAX_ACK_SIZE];
-			DatagramPacket ack = new DatagramPacket(receiveData, receiveData.length);
-			System.out.println("Waiting for ACK...");
-			socket.receive(ack);
-			Packet ackPacket = new Packet(ack.getData(), (short) ack.getLength());
-			
-			if (!ackPacket.isValidPacket()) {
-				printAckStatus(ackPacket.getAckno(), "ErrAck");
-				error = true;
-				return false;
-			} else if (curSeqno != ackPacket.getAckno()) {
-				printAckStatus(ackPacket.getAckno(), "DuplAck");
-				error = true;
-				return false;
-			} else {
-				printAckStatus(ackPacket.getAckno(), "MoveWnd");
-				return true;
-			}
-			
-		} catch (SocketTimeoutException e) {
-			System.out.println("TIMEOUT " + curSeqno);
-			error = true;
-			return false;
-			
-		} catch (IOException io) {
-			printError(io.getMessage());
-			io.printStackTrace();
-		}
-		return true;
-	}
-	
-	private void printPacketStatus(String status1, String status2) {
-		System.out.println(status1 + " " + curSeqno + " " + curSeqno * PACKET_SIZE + 
-				":" + ((curSeqno * PACKET_SIZE) + packetArray[curSeqno].getData().length) + " " +
-				System.currentTimeMillis() + " " + status2);
-	}
-	
-	private void printAckStatus(int ackno, String status) {
-		System.out.println("AckRcvd " + ackno + " " + status);
-	}
-	
-	private void sendPacket(Packet packet, SketchyServerSocket sketchySocket) throws IOException {
-		int result = sketchySocket.send(packetArray[curSeqno], destAddress, PORT);
-		
-		if (result == 1) {
-			if (error) {
-				printPacketStatus("ReSend.", "DROP");
-				error = false;
-			} else {
-				printPacketStatus("SENDing", "DROP");
-			}
-		} else if (result == 2) {
-			if (error) {
-				printPacketStatus("ReSend.", "ERR");
-				error = false;
-			} else {
-				printPacketStatus("SENDing", "ERR");
-			}
-		} else {
-			if (error) {
-				printPacketStatus("ReSend.", "SENT");
-				error = false;
-			} else {
-				printPacketStatus("SENDing", "SENT");
-			}
-		
-			if (ackReceived(sketchySocket.getSocket())) {
-				curSeqno++;
-			} 
-		}
-	}
-	
-	
-}
+package edu.metrostate;
+
+import java.io.*;
+
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * A program to act as a UDP sender
+ * 
+ * @author Gabriel
+ * @author Dan
+ * @author James
+ * 
+ * @see <a href="https://github.com/michaelknigge/pcldumper/blob/master/pcldumper/src/main/java/de/textmode/pcldumper/Main.java">CLIReference</a>
+ * 
+ */
+public class Sender {
+	
+	private final static int DEFAULT_PACKET_SIZE = 512;
+	private final int PACKET_SIZE;
+	private final int PORT;
+	private final File FILE;
+	private final int DROP_PERCENTAGE;
+	private final Impairment IMPAIRMENT;
+	private final int TIMEOUT;
+	private final boolean HAS_DROP_RATE;
+	private final boolean HAS_TIMEOUT;
+	private final boolean HAS_PACKET_SIZE;
+	private final int WINDOW_SIZE;
+	private final WindowMode MODE;
+	private final ChecksumType CHECKSUM;
+	private final CongestionAlgorithm CONGESTION;
+	private final int STREAMS;
+	private final int FEC_GROUP;							//Data packets per parity packet, 0 for no forward error correction
+	private final boolean COMPRESS;
+	private final boolean VERIFY;
+	private final String RECEIVER_ADDRESS;
+	private final InetSocketAddress destAddress;
+	private final int SESSION;								//Random id that lets the receiver tell this transfer apart from others
+	private final int INTERVAL;								//Seconds between summary lines, 0 for only the final one
+	private final TransferMetrics metrics = new TransferMetrics();
+	private final EventLog log;
+	
+	private final static String USAGE = 
+			"edu.metrostate.Sender [OPTION]... [FILE] [RECEIVER_IP_ADDRESS] [RECEIVER_PORT]";
+	private final static String HEADER = 
+			"\nSender breaks a file into packets and sends via UDP to a receiver.\n\n";
+	private final static String FOOTER = 
+			"\nUnsupported - Use at your own risk.";
+	
+	public Sender(CommandLine line) throws Exception {
+		String settings = "";
+		
+		HAS_DROP_RATE = line.hasOption("d");
+		HAS_TIMEOUT = line.hasOption("t");
+		HAS_PACKET_SIZE = line.hasOption("s");
+		
+		if (HAS_TIMEOUT) {
+			TIMEOUT = Integer.parseInt(line.getOptionValue("t"));
+		} else {
+			TIMEOUT = 1000;
+		}
+		settings = settings.concat("\nInitial Timeout: " + TIMEOUT);
+		
+		if (HAS_DROP_RATE) {
+			DROP_PERCENTAGE = Integer.parseInt(line.getOptionValue("d"));
+		} else {
+			DROP_PERCENTAGE = 0;
+		}
+		settings = settings.concat("\nDrop Rate: " + DROP_PERCENTAGE + "%");
+		
+		IMPAIRMENT = Impairment.parse(line.getOptionValue("I"), DROP_PERCENTAGE);
+		settings = settings.concat("\nImpairment: " + IMPAIRMENT);
+		
+		if (line.hasOption("w")) {
+			WINDOW_SIZE = Integer.parseInt(line.getOptionValue("w"));
+		} else {
+			WINDOW_SIZE = 1;
+		}
+		if (WINDOW_SIZE < 1) {
+			throw new IllegalArgumentException("Window size must be at least 1");
+		}
+		settings = settings.concat("\nWindow Size: " + WINDOW_SIZE);
+		
+		if (line.hasOption("m")) {
+			MODE = WindowMode.parse(line.getOptionValue("m"));
+		} else {
+			MODE = WindowMode.GO_BACK_N;
+		}
+		settings = settings.concat("\nWindow Mode: " + MODE);
+		
+		if (line.hasOption("c")) {
+			CHECKSUM = ChecksumType.parse(line.getOptionValue("c"));
+		} else {
+			CHECKSUM = ChecksumType.CRC32C;
+		}
+		settings = settings.concat("\nChecksum: " + CHECKSUM);
+		
+		if (line.hasOption("C")) {
+			CONGESTION = CongestionAlgorithm.parse(line.getOptionValue("C"));
+		} else {
+			CONGESTION = CongestionAlgorithm.CUBIC;
+		}
+		settings = settings.concat("\nCongestion Control: " + CONGESTION);
+		
+		if (line.hasOption("k")) {
+			STREAMS = Integer.parseInt(line.getOptionValue("k"));
+		} else {
+			STREAMS = 1;
+		}
+		if (STREAMS < 1 || STREAMS > 0xFFFF) {
+			throw new IllegalArgumentException("Number of streams must be between 1 and 65535");
+		}
+		settings = settings.concat("\nStreams: " + STREAMS);
+		
+		if (line.hasOption("f")) {
+			FEC_GROUP = Integer.parseInt(line.getOptionValue("f"));
+		} else {
+			FEC_GROUP = 0;
+		}
+		if (FEC_GROUP != 0 && (FEC_GROUP < 2 || FEC_GROUP > 255)) {
+			throw new IllegalArgumentException("FEC group size must be between 2 and 255, or 0 for none");
+		}
+		if (FEC_GROUP != 0 && MODE != WindowMode.SELECTIVE_REPEAT) {
+			throw new IllegalArgumentException("FEC needs Selective Repeat, Go-Back-N discards the packets a lost one would be rebuilt from");
+		}
+		settings = settings.concat("\nFEC Group: " + (FEC_GROUP == 0 ? "off" : FEC_GROUP + " + 1 parity"));
+		
+		COMPRESS = line.hasOption("z");
+		if (COMPRESS && FEC_GROUP != 0) {
+			throw new IllegalArgumentException("FEC can't be combined with compression, a rebuilt packet's offset comes from its seqno");
+		}
+		settings = settings.concat("\nCompression: " + COMPRESS);
+		
+		VERIFY = line.hasOption("V");
+		settings = settings.concat("\nVerify: " + VERIFY);
+		
+		if (line.hasOption("i")) {
+			INTERVAL = Integer.parseInt(line.getOptionValue("i"));
+		} else {
+			INTERVAL = 1;
+		}
+		if (INTERVAL < 0) {
+			throw new IllegalArgumentException("Summary interval can't be negative");
+		}
+		settings = settings.concat("\nSummary Interval: " + INTERVAL + "s");
+		
+		log = new EventLog(line.hasOption("v"), System.out);
+		settings = settings.concat("\nPacket Trace: " + log.isEnabled());
+
+		String[] reqArgs = line.getArgs();
+		
+		FILE = new File(reqArgs[0]);
+		settings = settings.concat("\nFile: " + FILE);
+
+		RECEIVER_ADDRESS = reqArgs[1];
+		settings = settings.concat("\nReceiver Address: " + RECEIVER_ADDRESS);
+
+		PORT = Integer.parseInt(reqArgs[2]);
+		settings = settings.concat("\nPort: " + PORT);
+		destAddress = new InetSocketAddress(InetAddress.getByName(RECEIVER_ADDRESS), PORT);
+		
+		//"mtu" sizes packets to the MTU of the interface facing the receiver, anything up to a 64 KB datagram can be given explicitly
+		if (HAS_PACKET_SIZE && line.getOptionValue("s").equalsIgnoreCase("mtu")) {
+			PACKET_SIZE = PathMtu.packetSizeFor(destAddress);
+		} else if (HAS_PACKET_SIZE) {
+			PACKET_SIZE = Integer.parseInt(line.getOptionValue("s"));
+		} else {
+			PACKET_SIZE = DEFAULT_PACKET_SIZE;
+		}
+		if (PACKET_SIZE <= Packet.HEADER_SIZE || PACKET_SIZE > Packet.MAX_PACKET_SIZE) {
+			throw new IllegalArgumentException("Packet size must be between " + (Packet.HEADER_SIZE + 1) + " and " + Packet.MAX_PACKET_SIZE);
+		}
+		settings = settings.concat("\nPacket Size: " + PACKET_SIZE + "\n");
+		
+		System.out.println(settings);
+		
+		SESSION = ThreadLocalRandom.current().nextInt();
+		System.out.println("Session: " + Integer.toHexString(SESSION));
+	}
+	
+	/**
+	 * Runs as a command line argument to send a file via UDP given a file path and an address/port to send to.
+	 * @param args
+	 */
+	public static void main(String args[]) {
+		
+    	final CommandLineParser parser = new DefaultParser();
+    	final Options options = options();
+    	
+    	try {
+    		final CommandLine line = parser.parse(options, args);
+    		final String[] reqArgs = line.getArgs();
+    		
+    		if (line.hasOption("help") || reqArgs.length < 3) {
+    			showHelpAndExit(options);
+    		}
+    		
+    		try {
+    			System.out.println("Creating new Sender...");
+    			Sender sender = new Sender(line);
+    			System.out.println("Sender creation successful");
+    			System.out.println("Begin sending...");
+    			sender.send();
+    			
+    		} catch (Exception e) {
+				printError(e.getMessage());
+				e.printStackTrace();
+			}
+    	} catch (final ParseException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            showHelpAndExit(options);
+    	}
+    	
+	}
+		
+	/*
+	 * Splits the file into STREAMS byte ranges of whole packets and sends each one on its own SenderStream,
+	 * one thread per stream. Returns once every stream has been acknowledged and closed.
+	 * While they run the metrics are on JMX and a summary line is printed every INTERVAL seconds that saw any traffic.
+	 */
+	private final void send() throws Exception {
+		List<SenderStream> streams = createStreams();
+		
+		metrics.register("Sender", Integer.toHexString(SESSION));
+		ScheduledExecutorService summaries = Executors.newSingleThreadScheduledExecutor();
+		if (INTERVAL > 0) {
+			long[] lastActivity = { 0 };
+			summaries.scheduleAtFixedRate(() -> {
+				if (metrics.getActivity() != lastActivity[0]) {
+					lastActivity[0] = metrics.getActivity();
+					log.message(metrics.summary());
+				}
+			}, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(STREAMS);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (SenderStream stream : streams) {
+				results.add(pool.submit(stream));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			pool.shutdown();
+			summaries.shutdownNow();
+			log.message(metrics.summary());
+			log.message(BufferPool.SHARED.summary());
+			log.close();
+			metrics.unregister();
+		}
+	}
+	
+	/*
+	 * Creates one SenderStream for each of the STREAMS byte ranges, without starting them
+	 */
+	final List<SenderStream> createStreams() throws IOException {
+		long payloadSize = PACKET_SIZE - Packet.HEADER_SIZE;
+		long fileLength = FILE.length();
+		long packetsPerStream = ((fileLength + payloadSize - 1) / payloadSize + STREAMS - 1) / STREAMS;
+		
+		List<SenderStream> streams = new ArrayList<>();
+		for (int i = 0; i < STREAMS; i++) {
+			long start = Math.min(fileLength, i * packetsPerStream * payloadSize);
+			long end = Math.min(fileLength, (i + 1) * packetsPerStream * payloadSize);
+			streams.add(new SenderStream(SESSION, i, STREAMS, FILE, start, end, destAddress, PACKET_SIZE, WINDOW_SIZE,
+					MODE, FEC_GROUP, COMPRESS, VERIFY, CHECKSUM, CONGESTION, TIMEOUT, IMPAIRMENT, metrics, log));
+		}
+		return streams;
+	}
+	
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public EventLog getLog() {
+		return log;
+	}
+	
+	/*
+	 * The command line options of the sender
+	 */
+	static final Options options() {
+		final Options options = new Options();
+		options.addOption("t", "timeout", true, "the initial retransmission timeout in ms (default 1000), adapted to the measured RTT after the first ACK");
+		options.addOption("s", "size", true, "the size of the packet in bytes up to 65507 (default 512), or mtu to fit the MTU of the interface facing the receiver");
+		options.addOption("d", "drop", true, "the percentage (0-100) of datagrams to corrupt or drop, half each");
+		options.addOption("I", "impair", true, "simulated network conditions, e.g. drop=1,corrupt=1,dup=1,reorder=1,delay=20,jitter=5,burst=1:30,rate=10m,seed=7");
+		options.addOption("w", "window", true, "the number of packets allowed in flight (default 1, stop and wait)");
+		options.addOption("m", "mode", true, "the sliding window protocol, gbn (Go-Back-N, default) or sr (Selective Repeat)");
+		options.addOption("c", "checksum", true, "the packet checksum, crc32c (default) or inet (16 bit Internet checksum), must match on both ends");
+		options.addOption("k", "streams", true, "the number of parallel streams, each with its own socket and thread, to split the file across (default 1)");
+		options.addOption("C", "congestion", true, "the congestion control, cubic (default), reno or none (the whole window is sent at once)");
+		options.addOption("f", "fec", true, "forward error correction: a parity packet after every this many (2-255) data packets lets the receiver rebuild one lost packet per group without a resend, sr only (default 0, off)");
+		options.addOption("z", "compress", false, "deflate the file on the fly, each packet covering as much of it as compresses into one payload, slices that don't shrink are sent as they are");
+		options.addOption("V", "verify", false, "check the receiver's copy against a SHA-256 Merkle tree of each stream's range and resend only the parts that differ");
+		options.addOption("i", "interval", true, "the seconds between summary lines of the transfer metrics, 0 for only the final one (default 1)");
+		options.addOption("v", "verbose", false, "trace every packet, written out by a background thread");
+		options.addOption("h", "help", false, "shows this help");
+		return options;
+	}
+	
+	private static final void showHelpAndExit(Options pOptions) {
+		final HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(USAGE, HEADER, pOptions, FOOTER);
+		System.exit(1);
+	}
+	
+	static final void printError(final String error) {
+        System.err.println();
+        System.err.println("**********************************************************************");
+        System.err.println();
+        System.err.println(error);
+        System.err.println();
+        System.err.println("**********************************************************************");
+        System.err.println();
+	}
+}
@@ -0,0 +1,796 @@
+package edu.metrostate;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+
+/*
+ * One stream of a transfer: sends the byte range [START, END) of the file over its own socket, with
+ * its own window, retransmission timers, RTT estimate and congestion window, all driven by its own
+ * event loop. Seqnos count packets from the start of the range in 64 bits and every data packet carries its
+ * absolute file offset, so the receiver can put the ranges of all streams back into one file. The window's
+ * arrays are indexed by seqno % WINDOW_SIZE, so a stream of any length runs in the same memory.
+ *
+ * The stream opens with a SYN and only starts sending data once the SYN-ACK says which packet size and
+ * window the receiver accepts. Once every packet is ACKed it sends a FIN and waits for the FIN-ACK.
+ * SYN and FIN are resent with the RTO backing off, up to MAX_CONTROL_ATTEMPTS times.
+ * With forward error correction each group of FEC_GROUP packets is followed by a parity packet, XORed together
+ * as the packets first go out. With compression each packet covers as much of the range as deflates into its payload,
+ * so the file offset of the next packet is tracked as packets are made rather than worked out from the seqno.
+ *
+ * Packets are read from the file and encoded ahead of the window by the stream's SendPipeline on a thread of its own,
+ * and this stream's event loop only takes them into the window and sends them.
+ *
+ * With verification the pipeline also hashes the range into a MerkleTree and the FIN carries its root, so the FIN is
+ * only sent once the tree is done. If the receiver's copy differs, the stream walks down the tree with digest packets
+ * to the leaves that differ, sends those parts of the range again as new packets after the ones already sent, and
+ * sends the FIN again, up to MAX_REPAIRS times. Parity stops at the first repair, since the receiver can only rebuild
+ * a packet whose offset follows from its seqno.
+ */
+public class SenderStream implements Runnable {
+
+	private final int PACKET_SIZE;							//Requested in the SYN, the receiver may ask for smaller packets
+	private final int WINDOW_SIZE;							//Requested in the SYN and the size of the window ring
+	private final WindowMode MODE;
+	private final int FEC_GROUP;							//Requested in the SYN, 0 for no parity packets
+	private final boolean COMPRESS;							//Requested in the SYN
+	private final boolean VERIFY;							//Requested in the SYN
+	private final ChecksumType CHECKSUM;
+	private final CongestionAlgorithm CONGESTION;
+	private final int SESSION;								//Shared by every stream of the transfer
+	private final int STREAM;								//Index of this stream
+	private final int STREAM_COUNT;							//Sent in SYN and FIN so the receiver knows when the whole file is in
+	private final long START;
+	private final long END;
+	private int packetSize;									//Packet size and window the receiver accepted in its SYN-ACK
+	private int windowSize;
+	private int fecGroup;									//Accepted in the SYN-ACK
+	private ParityGroup parity;								//The group being sent and the packet its parity goes out in
+	private BlockCompressor compressor;						//Created once the SYN-ACK accepts compression
+	private MerkleTree tree;								//Created once the SYN-ACK accepts verification
+	private Packet parityPacket;
+	private boolean established = false;
+	private boolean finSent = false;
+	private boolean finished = false;						//The FIN was acknowledged
+	private Packet control;									//The SYN or FIN, resent by controlTimer until it is answered
+	private TimerWheel.Timeout controlTimer;
+	private int controlAttempts;
+	private long controlSentTime;
+	private long numPackets;								//Packets the range takes uncompressed
+	private long remaining;									//File bytes still to enter the window, of the range and of any parts being repaired
+	private MappedFileReader reader;						//The file is read by the pipeline, a little ahead of the window
+	private SendPipeline pipeline;
+	private Packet[] window;								//Packets in flight, indexed by seqno % WINDOW_SIZE
+	private SendPipeline.Segment[] segments;				//The pipeline segments the window's packets belong to, handed back when their slot is reused
+	private Packet[] ackPackets;							//Views over the batcher's receive ring, ACKs are received into the same buffers every time
+	private TimerWheel.Timeout[] timers;					//Retransmission timer of each window slot
+	private long[] sentTime;								//When each packet was last sent (System.nanoTime), used for its retransmission timer
+	private boolean[] retransmitted;						//Karn's algorithm: ACKs of retransmitted packets are not RTT samples
+	private int[] rawLength;								//How much of the file each packet covers, more than its payload if it is compressed
+	private long[] firstSentTime;							//When each packet was first sent, retransmissions included in its delivery latency
+	private RttEstimator rtt;
+	private boolean[] acked;								//Which packets past base have been SACKed (Selective Repeat)
+	private long base = 0;									//Oldest unacknowledged packet
+	private long nextSeqno = 0;								//Next packet to be sent for the first time
+	private CongestionControl congestion;					//Limits the packets in flight to less than WINDOW_SIZE when the network can't take them
+	private long recoveryPoint = 0;							//Losses of packets sent before this were already answered with a window reduction
+	private int dupAcks = 0;								//Go-Back-N duplicate ACKs for base in a row
+	private TimerWheel.Timeout paceTimer;					//Resumes sending once the pacing gap has passed
+	private long nextSendTime;								//Earliest time the next new packet may go out
+	private long lastBackoff = Long.MIN_VALUE;				//When a timeout last doubled the RTO
+	private boolean probing = false;						//Looking for the parts of the range that differ on the receiver
+	private int probeLevel;									//The tree level being probed
+	private long probeFrom;									//Nodes of probeLevel still to probe, children of one node that differs
+	private long probeTo;
+	private long probeIndex;								//The nodes of the digest packet in flight
+	private int probeCount;
+	private final ArrayDeque<Long> suspects = new ArrayDeque<>();	//Nodes above probeLevel that differ, their children not yet probed
+	private final ArrayDeque<Long> mismatched = new ArrayDeque<>();	//Nodes of probeLevel found to differ
+	private int repairs;									//Times the receiver's copy differed
+	private final InetSocketAddress destAddress;
+	private final DatagramChannel channel;
+	private final DatagramBatcher batcher;
+	private final SketchyServerSocket sketchySocket;
+	private final EventLoop loop;
+	private final TransferMetrics metrics;					//Shared by every stream of the transfer
+	private final EventLog log;
+	private final static int FAST_RETRANSMIT_THRESHOLD = 3;	//SACKed packets above a hole, or duplicate ACKs, before it is resent without a timeout
+	private final static long PACING_SLACK = 1_000_000L;	//Sends up to 1 ms (one timer wheel tick) late may catch up
+	private final static int MAX_CONTROL_ATTEMPTS = 6;		//With a 1 s initial RTO a SYN is given about a minute
+	private final static int MAX_REPAIRS = 3;				//Rounds of repair before giving up on a range that keeps differing
+
+	public SenderStream(int pSession, int pStream, int pStreamCount, File file, long pStart, long pEnd, InetSocketAddress pDestAddress,
+			int pPacketSize, int pWindowSize, WindowMode pMode, int pFecGroup, boolean pCompress, boolean pVerify, ChecksumType pChecksum, CongestionAlgorithm pCongestion,
+			int timeout, Impairment impairment, TransferMetrics pMetrics, EventLog pLog) throws IOException {
+		this.SESSION = pSession;
+		this.STREAM = pStream;
+		this.STREAM_COUNT = pStreamCount;
+		this.START = pStart;
+		this.END = pEnd;
+		this.destAddress = pDestAddress;
+		this.PACKET_SIZE = pPacketSize;
+		this.WINDOW_SIZE = pWindowSize;
+		this.MODE = pMode;
+		this.FEC_GROUP = pFecGroup;
+		this.COMPRESS = pCompress;
+		this.VERIFY = pVerify;
+		this.CHECKSUM = pChecksum;
+		this.CONGESTION = pCongestion;
+		this.rtt = new RttEstimator(timeout * 1_000_000L);
+		this.metrics = pMetrics;
+		this.log = pLog;
+
+		channel = DatagramChannel.open();
+		batcher = new DatagramBatcher(channel, DatagramBatcher.DEFAULT_BATCH_SIZE, Math.max(PACKET_SIZE, Packet.SYN_SIZE), Packet.SYN_SIZE);
+		loop = new EventLoop();
+		sketchySocket = new SketchyServerSocket(batcher, impairment, STREAM, loop.getTimers(), metrics);
+		loop.register(channel, this::receiveReplies);
+		loop.addBatcher(batcher);
+
+		//Nothing is read until the handshake says where the range resumes and how big the packets are
+		reader = new MappedFileReader(file);
+		pipeline = new SendPipeline(reader, SESSION, END, PACKET_SIZE, WINDOW_SIZE, CHECKSUM, loop, this::refill, "stream-" + STREAM + "-read");
+		allocateWindow();
+	}
+
+	/*
+	 * Sends the SYN, then lets the event loop drive the stream from replies and timers until the FIN is acknowledged or
+	 * the receiver stops answering. An empty range still goes through the handshake, the receiver counts one FIN per stream.
+	 */
+	@Override
+	public void run() {
+		try {
+			log.message("Sending SYN...");
+			control.packSyn(Packet.SYN, SESSION, STREAM, reader.length(), START, END, PACKET_SIZE, WINDOW_SIZE, STREAM_COUNT, MODE, FEC_GROUP,
+					(byte) ((COMPRESS ? Packet.COMPRESSED : 0) | (VERIFY ? Packet.VERIFY : 0)));
+			sendControl();
+			batcher.flush();
+			loop.run();
+			
+			if (!established) {
+				Sender.printError("No answer from " + destAddress + " to the SYN of stream " + STREAM);
+			} else if (!finished) {
+				Sender.printError("The FIN of stream " + STREAM + " was never acknowledged, the receiver may not have closed the file");
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} finally {
+			shutDown();
+		}
+	}
+	
+	/*
+	 * Stops the pipeline's thread and gives back the pooled buffers, the file and the socket, however the loop ended.
+	 * The pooled buffers go first, so an error closing the rest can't leak them.
+	 */
+	private void shutDown() {
+		pipeline.stop();
+		if (compressor != null) {
+			log.message(compressor.summary());
+			compressor.close();
+		}
+		if (established) {
+			log.message(pipeline.summary());
+		}
+		log.message(batcher.summary(loop.getCpuNanos()));
+		if (parity != null) {
+			parity.close();
+			BufferPool.SHARED.release(parityPacket.getBuffer());
+		}
+		
+		log.message("Closing connection...");
+		sketchySocket.close();
+		batcher.close();
+		try {
+			reader.close();
+			loop.close();
+			channel.close();
+			log.message("Connection closed.");
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Keeps as many packets in flight as the negotiated window and the congestion window allow, taking each one from the pipeline as it enters
+	 * the window. If the pipeline hasn't got the next one ready yet, it signals the loop to come back here when it has.
+	 * Once there is an RTT estimate new packets are paced evenly over the RTT instead of going out in one burst:
+	 * twice the congestion window per RTT in slow start, 1.25 times after, so pacing itself never limits the window's growth.
+	 */
+	private void fillWindow() throws IOException {
+		while (remaining > 0 && nextSeqno < base + Math.min(windowSize, congestion.getWindow())) {
+			long srtt = rtt.getSrtt();
+			if (CONGESTION != CongestionAlgorithm.NONE && srtt > 0) {
+				long now = System.nanoTime();
+				if (nextSendTime > now) {
+					if (!paceTimer.isScheduled()) {
+						loop.getTimers().schedule(paceTimer, nextSendTime);
+					}
+					break;
+				}
+				if (!takePacket(nextSeqno)) {
+					break;
+				}
+				long gap = (long) (srtt / (congestion.getWindow() * (congestion.inSlowStart() ? 2.0 : 1.25)));
+				nextSendTime = Math.max(nextSendTime, now - PACING_SLACK) + gap;
+			} else if (!takePacket(nextSeqno)) {
+				break;
+			}
+			sendPacket(nextSeqno, false);
+			if (fecGroup > 0 && repairs == 0) {
+				addToParity(nextSeqno);
+			}
+			nextSeqno++;
+		}
+	}
+	
+	/*
+	 * XORs a packet going out for the first time into its group's parity and sends the parity after the group's last packet.
+	 * Groups are aligned on multiples of fecGroup, the first one after a resume and the last one of the range may be shorter.
+	 */
+	private void addToParity(long seqno) throws IOException {
+		long group = seqno / fecGroup;
+		if (parity.getGroup() != group) {
+			parity.reset(group);
+		}
+		Packet packet = window[slot(seqno)];
+		parity.add(packet.getBuffer(), Packet.HEADER_SIZE, packet.getDataLength());
+		
+		if ((seqno + 1) % fecGroup == 0 || remaining == 0) {
+			long first = seqno - parity.getCount() + 1;
+			parity.copyTo(parityPacket.getBuffer(), Packet.HEADER_SIZE);
+			parityPacket.packParity(SESSION, first, parity.getCount(), parity.getLengths(), parity.getMaxLength());
+			int result = sketchySocket.send(parityPacket, destAddress);
+			log.control("SENDing", "PARITY", result == 1 ? "DROP" : result == 2 ? "ERR" : "SENT");
+		}
+	}
+	
+	/*
+	 * Puts the pipeline's next packet, which is seqno's, into its window slot and hands the slot's old one back, it was
+	 * acknowledged before the window could move this far. Returns false if the pipeline hasn't got it ready yet.
+	 */
+	private boolean takePacket(long seqno) throws IOException {
+		SendPipeline.Segment segment = pipeline.poll();
+		if (segment == null) {
+			return false;
+		}
+		int slot = slot(seqno);
+		if (segments[slot] != null) {
+			pipeline.release(segments[slot]);
+		}
+		segments[slot] = segment;
+		window[slot] = segment.getPacket();
+		rawLength[slot] = segment.getRawLength();
+		remaining -= segment.getRawLength();
+		return true;
+	}
+	
+	/*
+	 * Fills the window from a timer or a signal, which have nowhere to throw to, and sends the FIN if that was all
+	 * that was holding it up
+	 */
+	private void refill() {
+		try {
+			fillWindow();
+			finishIfDone();
+		} catch (IOException e) {
+			Sender.printError(e.getMessage());
+			e.printStackTrace();
+			loop.stop();
+		}
+	}
+	
+	/*
+	 * Allocates the window ring for the requested window and packet size, the negotiated ones can only be smaller
+	 */
+	private void allocateWindow() {
+		window = new Packet[WINDOW_SIZE];
+		segments = new SendPipeline.Segment[WINDOW_SIZE];
+		sentTime = new long[WINDOW_SIZE];
+		retransmitted = new boolean[WINDOW_SIZE];
+		firstSentTime = new long[WINDOW_SIZE];
+		rawLength = new int[WINDOW_SIZE];
+		acked = new boolean[WINDOW_SIZE];
+		
+		timers = new TimerWheel.Timeout[WINDOW_SIZE];
+		control = new Packet(new byte[Math.max(Packet.SYN_SIZE, PACKET_SIZE)], CHECKSUM);	//Digest packets are as big as data packets
+		controlTimer = new TimerWheel.Timeout(this::onControlTimeout);
+		paceTimer = new TimerWheel.Timeout(this::refill);
+		
+		for (int i = 0; i < WINDOW_SIZE; i++) {
+			final int slot = i;
+			timers[i] = new TimerWheel.Timeout(() -> onTimeout(slot));
+		}
+		
+		if (FEC_GROUP > 0) {
+			parity = new ParityGroup(PACKET_SIZE - Packet.HEADER_SIZE);
+			parityPacket = new Packet(BufferPool.SHARED.borrow(PACKET_SIZE), CHECKSUM);
+		}
+		
+		ackPackets = new Packet[batcher.getBatchSize()];
+		for (int i = 0; i < ackPackets.length; i++) {
+			ackPackets[i] = new Packet(batcher.getReceiveBuffer(i), CHECKSUM);
+		}
+	}
+	
+	/*
+	 * Processes a batch of replies waiting on the channel, then refills the window. Sends the FIN once every packet is acknowledged.
+	 */
+	private void receiveReplies() throws IOException {
+		int count = batcher.receive();
+		for (int i = 0; i < count; i++) {
+			metrics.packetReceived();
+			handleReply(ackPackets[i], batcher.getLength(i));
+		}
+		
+		if (established && !finSent && !probing) {
+			fillWindow();
+			finishIfDone();
+		}
+	}
+	
+	/*
+	 * Checks a reply from the receiver and hands it on by type
+	 */
+	private void handleReply(Packet reply, int length) throws IOException {
+		long ackno = reply.getAckno(base);
+		
+		if (!reply.isValidPacket(length)) {
+			metrics.corruption();
+			log.ackReceived(ackno, "ErrAck");
+		} else if (reply.getSession() != SESSION) {
+			log.ackReceived(ackno, "Stray");
+		} else if (reply.getType() == Packet.SYN_ACK) {
+			onSynAck(reply);
+		} else if (reply.getType() == Packet.ACK && established && !finSent) {
+			processAck(reply);
+		} else if (reply.getType() == Packet.FIN_ACK && finSent) {
+			log.message("Received FIN-ACK.");
+			loop.getTimers().cancel(controlTimer);
+			finished = true;
+			loop.stop();
+		} else if (reply.getType() == Packet.DIGEST_ACK && tree != null && (finSent || probing)) {
+			onDigestAck(reply);
+		} else {
+			log.ackReceived(ackno, "Stray");
+		}
+	}
+	
+	/*
+	 * Completes the handshake. Takes the receiver's packet size and window, which are never larger than the ones asked for,
+	 * and counts the packets of the range in that packet size. The SYN's round trip is the first RTT sample unless it was resent.
+	 * The SYN-ACK's rangeStart is where the receiver wants the range to resume, the whole packets before it survived an
+	 * earlier, interrupted transfer.
+	 */
+	private void onSynAck(Packet synAck) throws IOException {
+		if (established) {
+			return;
+		}
+		loop.getTimers().cancel(controlTimer);
+		if (controlAttempts == 1) {
+			rtt.sample(System.nanoTime() - controlSentTime);
+		}
+		
+		packetSize = Math.min(PACKET_SIZE, synAck.getPacketSize());
+		windowSize = Math.min(WINDOW_SIZE, synAck.getWindowSize());
+		if (packetSize <= Packet.HEADER_SIZE || windowSize < 1) {
+			Sender.printError("The receiver accepted no usable packet size or window (" + synAck.getPacketSize() + ", " + synAck.getWindowSize() + ")");
+			loop.stop();
+			return;
+		}
+		//Only a usable answer gets the state that holds pooled buffers or the range's digests
+		fecGroup = Math.min(FEC_GROUP, synAck.getFecGroup());
+		if (COMPRESS && synAck.isCompressed()) {
+			compressor = new BlockCompressor(packetSize - Packet.HEADER_SIZE);
+		}
+		if (VERIFY && synAck.isVerified()) {
+			tree = new MerkleTree(START, END, false);
+		}
+		log.message("Received SYN-ACK: packet size " + packetSize + ", window " + windowSize + (fecGroup > 0 ? ", FEC group " + fecGroup : "")
+				+ (compressor != null ? ", compressed" : "") + (tree != null ? ", verified" : ""));
+		
+		established = true;
+		int payloadSize = packetSize - Packet.HEADER_SIZE;
+		numPackets = (END - START + payloadSize - 1) / payloadSize;
+		long firstSeqno = Math.max(0, Math.min((synAck.getRangeStart() - START) / payloadSize, numPackets));
+		long nextOffset = START;
+		if (firstSeqno > 0) {
+			log.message("Resuming at packet " + firstSeqno + " of " + numPackets);
+			base = firstSeqno;
+			nextSeqno = firstSeqno;
+			nextOffset = Math.min(END, START + firstSeqno * payloadSize);
+			recoveryPoint = firstSeqno;
+		}
+		remaining = END - nextOffset;
+		congestion = CONGESTION.newController(windowSize);
+		pipeline.start(firstSeqno, nextOffset, payloadSize, compressor, tree);
+	}
+	
+	/*
+	 * Sends the FIN once every packet is acknowledged and, with verification, the tree is done. The pipeline signals
+	 * when it is, so this runs again then.
+	 */
+	private void finishIfDone() throws IOException {
+		if (!established || finSent || probing || base != nextSeqno || remaining > 0) {
+			return;
+		}
+		if (tree == null) {
+			sendFin(null);
+		} else {
+			pipeline.checkFailure();
+			byte[] root = tree.root();
+			if (root != null) {
+				sendFin(root);
+			}
+		}
+	}
+	
+	/*
+	 * Sends the FIN that ends this stream, telling the receiver how many streams the transfer has and, with verification,
+	 * the root of the range's tree
+	 */
+	private void sendFin(byte[] root) throws IOException {
+		log.message("Sending FIN...");
+		finSent = true;
+		controlAttempts = 0;
+		if (root == null) {
+			control.packFin(Packet.FIN, SESSION, STREAM_COUNT);
+		} else {
+			control.packFin(SESSION, STREAM_COUNT, root);
+		}
+		sendControl();
+	}
+	
+	/*
+	 * Narrows down the parts of the range that differ on the receiver. A digest ACK for the root answers the FIN: the
+	 * receiver's copy differs somewhere, so the search starts from the top of the tree. Any other answers the digest
+	 * packet in flight and names the nodes of it that differ. Answers to anything else are stale.
+	 */
+	private void onDigestAck(Packet reply) throws IOException {
+		int level = reply.getLevel();
+		long index = reply.getIndex();
+		if (finSent && level == tree.getTop() && index == 0) {
+			loop.getTimers().cancel(controlTimer);
+			finSent = false;
+			if (++repairs > MAX_REPAIRS) {
+				Sender.printError("Stream " + STREAM + " still differs on the receiver after " + MAX_REPAIRS + " repairs");
+				loop.stop();
+				return;
+			}
+			log.message("The receiver's copy of the range differs, looking for where...");
+			probing = true;
+			suspects.clear();
+			mismatched.clear();
+			if (tree.getTop() == 0) {
+				probeLevel = 0;
+				mismatched.add(0L);
+			} else {
+				probeLevel = tree.getTop() - 1;
+				suspects.add(0L);
+			}
+			probeFrom = 0;
+			probeTo = 0;
+			probeNext();
+		} else if (probing && level == probeLevel && index == probeIndex) {
+			loop.getTimers().cancel(controlTimer);
+			long bits = reply.getMismatches();
+			for (int i = 0; i < probeCount; i++) {
+				if ((bits & (1L << i)) != 0) {
+					mismatched.add(index + i);
+				}
+			}
+			probeNext();
+		}
+	}
+	
+	/*
+	 * Sends the next digest packet of the search, with as many children of a node that differs as fit in a packet.
+	 * Moves down a level once the children of every node that differs on this one have been probed, and repairs once
+	 * it is down to the leaves, or finds nothing that differs.
+	 */
+	private void probeNext() throws IOException {
+		while (probeFrom >= probeTo) {
+			if (suspects.isEmpty()) {
+				if (probeLevel == 0 || mismatched.isEmpty()) {
+					repair();
+					return;
+				}
+				suspects.addAll(mismatched);
+				mismatched.clear();
+				probeLevel--;
+			}
+			long parent = suspects.poll();
+			probeFrom = parent * MerkleTree.FANOUT;
+			probeTo = Math.min(probeFrom + MerkleTree.FANOUT, tree.getNodes(probeLevel));
+		}
+		int fit = Math.min(Packet.SACK_BITS, (packetSize - Packet.HEADER_SIZE) / MerkleTree.HASH_SIZE);
+		probeIndex = probeFrom;
+		probeCount = (int) Math.min(probeTo - probeFrom, fit);
+		probeFrom += probeCount;
+		controlAttempts = 0;
+		control.packDigest(SESSION, probeLevel, probeIndex, probeCount, tree);
+		sendControl();
+	}
+	
+	/*
+	 * Ends the search and hands the leaves that differ, merged into runs, to the pipeline to be sent again after the
+	 * packets already sent. Once they are all acknowledged the FIN goes out again with the same root.
+	 */
+	private void repair() throws IOException {
+		probing = false;
+		long bytes = 0;
+		int runs = 0;
+		long runStart = -1;
+		long runEnd = -1;
+		for (long leaf : mismatched) {
+			if (tree.leafStart((int) leaf) != runEnd) {
+				if (runStart >= 0) {
+					pipeline.repair(runStart, runEnd);
+					runs++;
+				}
+				runStart = tree.leafStart((int) leaf);
+			}
+			runEnd = tree.leafEnd((int) leaf);
+			bytes += tree.leafEnd((int) leaf) - tree.leafStart((int) leaf);
+		}
+		if (runStart >= 0) {
+			pipeline.repair(runStart, runEnd);
+			runs++;
+		}
+		mismatched.clear();
+		remaining += bytes;
+		log.message("Resending " + bytes / 1000 + " KB in " + runs + " parts that differ on the receiver");
+		fillWindow();
+		finishIfDone();
+	}
+	
+	/*
+	 * Sends the SYN, FIN or digest packet and starts its retransmission timer
+	 */
+	private void sendControl() throws IOException {
+		controlAttempts++;
+		int result = sketchySocket.send(control, destAddress);
+		controlSentTime = System.nanoTime();
+		loop.getTimers().schedule(controlTimer, controlSentTime + rtt.getRto());
+		
+		if (controlAttempts > 1) {
+			metrics.retransmit();
+		}
+		String status1 = (controlAttempts > 1) ? "ReSend." : "SENDing";
+		String name = (control.getType() == Packet.SYN) ? "SYN" : (control.getType() == Packet.FIN) ? "FIN" : "DIGEST";
+		log.control(status1, name, result == 1 ? "DROP" : result == 2 ? "ERR" : "SENT");
+	}
+	
+	/*
+	 * Resends an unanswered SYN, FIN or digest packet with the RTO backed off, or gives up after MAX_CONTROL_ATTEMPTS
+	 */
+	private void onControlTimeout() {
+		if (controlAttempts >= MAX_CONTROL_ATTEMPTS) {
+			loop.stop();
+			return;
+		}
+		rtt.backoff();
+		try {
+			sendControl();
+		} catch (IOException e) {
+			Sender.printError(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Slides the window up to the cumulative ackno. Selective Repeat also marks the SACKed packets
+	 * and fast retransmits the holes below them, Go-Back-N fast retransmits base after three duplicate ACKs.
+	 * Every newly acknowledged packet is reported to the congestion controller.
+	 */
+	private void processAck(Packet ackPacket) throws IOException {
+		long ackno = ackPacket.getAckno(base);
+		
+		if (ackno < base || ackno > nextSeqno) {
+			metrics.duplicate();
+			log.ackReceived(ackno, "DuplAck");
+		} else {
+			boolean moved = ackno > base;
+			int newlyAcked = 0;
+			if (moved) {
+				//ACKs are cumulative, everything before ackno has arrived. A packet SACKed earlier was already sampled.
+				if (!acked[slot((ackno - 1))]) {
+					sampleRtt(ackno - 1);
+				}
+				newlyAcked += releasePackets(ackno);
+				dupAcks = 0;
+			}
+			if (MODE == WindowMode.SELECTIVE_REPEAT) {
+				newlyAcked += processSack(ackno, ackPacket.getSack());
+			}
+			
+			if (newlyAcked > 0) {
+				congestion.onAck(newlyAcked, System.nanoTime(), rtt.getSrtt());
+			}
+			if (!moved && newlyAcked == 0) {
+				metrics.duplicate();
+			}
+			log.ackReceived(ackno, moved ? "MoveWnd" : newlyAcked > 0 ? "Sacked" : "DuplAck");
+			
+			if (!moved && MODE == WindowMode.GO_BACK_N && base < nextSeqno && ++dupAcks == FAST_RETRANSMIT_THRESHOLD
+					&& !retransmitted[slot(base)]) {
+				signalLoss(base);
+				sendPacket(base, true);
+			}
+		}
+	}
+	
+	/*
+	 * Marks the packets in the SACK bitmap as received and stops their timers. A hole with FAST_RETRANSMIT_THRESHOLD
+	 * SACKed packets above it is resent right away, once, instead of waiting out its RTO.
+	 * Returns the number of packets the bitmap acknowledged for the first time.
+	 */
+	private int processSack(long ackno, long sack) throws IOException {
+		int news = 0;
+		long highest = -1;
+		
+		for (int i = 0; i < Packet.SACK_BITS && ackno + 1 + i < nextSeqno; i++) {
+			long seqno = ackno + 1 + i;
+			if ((sack & (1L << i)) != 0) {
+				highest = seqno;
+				if (!acked[slot(seqno)]) {
+					acked[slot(seqno)] = true;
+					loop.getTimers().cancel(timers[slot(seqno)]);
+					sampleRtt(seqno);
+					delivered(seqno, System.nanoTime());
+					news++;
+				}
+			}
+		}
+		
+		int above = 0;
+		for (long seqno = highest; seqno >= base; seqno--) {
+			if (acked[slot(seqno)]) {
+				above++;
+			} else if (above >= FAST_RETRANSMIT_THRESHOLD && !retransmitted[slot(seqno)]) {
+				signalLoss(seqno);
+				sendPacket(seqno, true);
+			}
+		}
+		return news;
+	}
+	
+	/*
+	 * Slides the window forward so that newBase is the oldest unacknowledged packet.
+	 * Acknowledged packets are released so their slots can be reused, and any RTO backoff is cleared.
+	 * Returns the number of released packets that hadn't already been SACKed.
+	 */
+	private int releasePackets(long newBase) {
+		int released = 0;
+		long now = System.nanoTime();
+		if (newBase > base) {
+			rtt.resetBackoff();
+		}
+		while (base < newBase) {
+			if (!acked[slot(base)]) {
+				delivered(base, now);
+				released++;
+			}
+			acked[slot(base)] = false;
+			loop.getTimers().cancel(timers[slot(base)]);
+			base++;
+		}
+		return released;
+	}
+	
+	/*
+	 * Counts the payload of a packet acknowledged for the first time and how long it took from its first send
+	 */
+	private void delivered(long seqno, long now) {
+		metrics.delivered(rawLength[slot(seqno)]);
+		metrics.getLatency().record(now - firstSentTime[slot(seqno)]);
+	}
+	
+	/*
+	 * Tells the congestion controller about the loss of seqno, unless it was sent before the last reduction.
+	 * That keeps a burst of losses from one window down to a single reduction.
+	 */
+	private void signalLoss(long seqno) {
+		if (seqno >= recoveryPoint) {
+			congestion.onLoss(System.nanoTime());
+			recoveryPoint = nextSeqno;
+		}
+	}
+	
+	/*
+	 * Feeds the round trip time of a newly ACKed packet into the RTO estimate, unless it was retransmitted (Karn's algorithm)
+	 */
+	private void sampleRtt(long seqno) {
+		if (!retransmitted[slot(seqno)]) {
+			long sample = System.nanoTime() - sentTime[slot(seqno)];
+			rtt.sample(sample);
+			metrics.getRtt().record(sample);
+		}
+	}
+	
+	/*
+	 * Called by the timer wheel when the packet in a window slot has gone unacknowledged for a whole RTO.
+	 * Go-Back-N resends every packet in flight, Selective Repeat only resends the expired packet.
+	 * The RTO backs off until an ACK for a packet that was only sent once gives a fresh sample, and the
+	 * congestion window collapses to slow start (once per window of data, like any other loss).
+	 * Selective Repeat slots that were sent together also expire together, so only a packet sent after the
+	 * last backoff doubles the RTO again; the others were timed with an RTO that is already known to be too short.
+	 */
+	private void onTimeout(int slot) {
+		long seqno = (MODE == WindowMode.GO_BACK_N) ? base : base + Math.floorMod(slot - base, WINDOW_SIZE);
+		long now = System.nanoTime();
+		if (seqno >= recoveryPoint) {
+			congestion.onTimeout(now);
+			recoveryPoint = nextSeqno;
+		}
+		if (sentTime[slot] >= lastBackoff) {
+			rtt.backoff();
+			lastBackoff = now;
+		}
+		metrics.timeout();
+		log.timeout(seqno, rtt.getRto() / 1_000_000, congestion.getWindow());
+		
+		try {
+			if (MODE == WindowMode.GO_BACK_N) {
+				for (long i = base; i < nextSeqno; i++) {
+					sendPacket(i, true);
+				}
+			} else {
+				sendPacket(seqno, true);
+			}
+		} catch (IOException e) {
+			Sender.printError(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	public long getLength() {
+		return END - START;
+	}
+	
+	/*
+	 * The window slot of a seqno
+	 */
+	private int slot(long seqno) {
+		return (int) (seqno % WINDOW_SIZE);
+	}
+	
+	/*
+	 * Whether the receiver acknowledged the FIN, i.e. the whole range arrived
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+	
+	private void printPacketStatus(long seqno, String status1, String status2) {
+		Packet packet = window[slot(seqno)];
+		log.packet(status1, seqno, packet.getOffset(), packet.getOffset() + rawLength[slot(seqno)], status2);
+	}
+	
+	/*
+	 * Sends the packet with the given seqno and starts its retransmission timer.
+	 * Dropped and corrupted packets are left for the timer to recover.
+	 */
+	private void sendPacket(long seqno, boolean resend) throws IOException {
+		int result = sketchySocket.send(window[slot(seqno)], destAddress);
+		sentTime[slot(seqno)] = System.nanoTime();
+		retransmitted[slot(seqno)] = resend;
+		if (resend) {
+			metrics.retransmit();
+		} else {
+			firstSentTime[slot(seqno)] = sentTime[slot(seqno)];
+		}
+		loop.getTimers().schedule(timers[slot(seqno)], sentTime[slot(seqno)] + rtt.getRto());
+		String status1 = resend ? "ReSend." : "SENDing";
+		
+		if (result == 1) {
+			printPacketStatus(seqno, status1, "DROP");
+		} else if (result == 2) {
+			printPacketStatus(seqno, status1, "ERR");
+		} else {
+			printPacketStatus(seqno, status1, "SENT");
+		}
+	}
+}
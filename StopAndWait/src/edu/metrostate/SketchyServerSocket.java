@@ -1,53 +1,211 @@
-package edu.metrostate;
-
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-
-public class SketchyServerSocket {
-	private final DatagramSocket serverSocket;
-	private final int DropPerc;
-	private final double ERROR_RATE = 0.5;
-	
-	public SketchyServerSocket(DatagramSocket socket, int DropPercentage) {
-		serverSocket = socket;
-		DropPerc = DropPercentage;
-	}
-	
-	/*
-	 * Returns 0 if send was successful, 1 if packet was dropped, and 2 if packet was corrupted
-	 */
-	public int send(Packet packet, InetAddress address, int port) throws IOException {
-		if (fault()) {
-			if (error()) {
-				packet.error();
-				sendAsDatagramPacket(packet, address, port);
-				packet.fixError();
-				return 2;
-			} else {
-				return 1;
-			}
-		} else {
-			sendAsDatagramPacket(packet, address, port);
-			return 0;
-		}
-	}
-	
-	private boolean fault() {
-		return Math.random() * 100 < DropPerc;
-	}
-	
-	private boolean error() {
-		return Math.random() < ERROR_RATE;
-	}
-	
-	private void sendAsDatagramPacket(Packet packet, InetAddress address, int port) throws IOException {
-		DatagramPacket dPacket = new DatagramPacket(packet.toByteArray(), (int)packet.getLen(), address, port);
-		serverSocket.send(dPacket);
-	}
-	
-	public DatagramSocket getSocket() {
-		return serverSocket;
-	}
-}
+package edu.metrostate;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/*
+ * Sends datagrams through a simulated bad network, as described by an Impairment: random and burst loss,
+ * corruption, duplication, reordering, delay with jitter and a rate limited link with a bounded queue.
+ *
+ * Every draw comes from this socket's own SplittableRandom, seeded from the impairment's seed and the stream,
+ * so there is no contention between streams and a run with the same seed makes the same decisions.
+ * Datagrams that have to wait are copied aside, into buffers from the BufferPool, and released by a timer on the owner's
+ * event loop, so a delay never blocks the thread that sends.
+ */
+public class SketchyServerSocket {
+	private final DatagramBatcher batcher;
+	private final Impairment impairment;
+	private final SplittableRandom random;
+	private final TimerWheel timers;
+	private final TimerWheel.Timeout releaseTimer;
+	private final PriorityQueue<Held> held = new PriorityQueue<>(
+			Comparator.comparingLong((Held h) -> h.due).thenComparingLong(h -> h.order));
+	private final ArrayDeque<Held> free = new ArrayDeque<>();	//Held datagrams already released, their buffers are reused
+	private final TransferMetrics metrics;
+	private boolean bursting = false;						//Gilbert-Elliott bad state
+	private long linkFreeAt;								//When the simulated link has sent everything queued on it
+	private long order;										//Keeps datagrams due at the same time in the order they were sent
+
+	/*
+	 * stream picks this socket's own random sequence out of the impairment's seed
+	 */
+	public SketchyServerSocket(DatagramBatcher pBatcher, Impairment pImpairment, long stream, TimerWheel pTimers, TransferMetrics pMetrics) {
+		batcher = pBatcher;
+		impairment = pImpairment;
+		random = new SplittableRandom(impairment.getSeed() ^ (stream * 0x9E3779B97F4A7C15L));
+		timers = pTimers;
+		releaseTimer = new TimerWheel.Timeout(this::release);
+		metrics = pMetrics;
+	}
+
+	/*
+	 * Returns 0 if send was successful, 1 if packet was dropped, and 2 if packet was corrupted.
+	 * A corrupted packet has one real bit flipped on the wire, which the receiver's checksum has to catch.
+	 * Packets are queued on the batcher and go out when it is flushed, or later if the impairment delays them.
+	 * Every outcome is counted in the metrics. The packet can be reused as soon as this returns.
+	 */
+	public int send(Packet packet, SocketAddress address) throws IOException {
+		int length = packet.getLen();
+		metrics.packetSent();
+
+		if (burstLoss()) {
+			metrics.drop();
+			return 1;
+		}
+		double fault = random.nextDouble();
+		if (fault < impairment.getDrop()) {
+			metrics.drop();
+			return 1;
+		}
+
+		boolean corrupt = fault < impairment.getDrop() + impairment.getCorrupt();
+		if (corrupt) {
+			packet.error(random);
+		}
+		boolean sent = emit(packet, length, address);
+		if (random.nextDouble() < impairment.getDuplicate()) {
+			emit(packet, length, address);
+		}
+		if (corrupt) {
+			packet.fixError();
+		}
+
+		if (!sent) {
+			metrics.drop();
+			return 1;
+		} else if (corrupt) {
+			metrics.corruption();
+			return 2;
+		}
+		return 0;
+	}
+
+	/*
+	 * Moves the Gilbert-Elliott chain one step and decides whether it loses this datagram
+	 */
+	private boolean burstLoss() {
+		if (impairment.getBurstEnter() == 0) {
+			return false;
+		}
+		if (bursting) {
+			bursting = random.nextDouble() >= impairment.getBurstExit();
+		} else {
+			bursting = random.nextDouble() < impairment.getBurstEnter();
+		}
+		return bursting && random.nextDouble() < impairment.getBurstLoss();
+	}
+
+	/*
+	 * Queues the datagram on the batcher now, or copies it aside until the link, the delay and the jitter let it go.
+	 * Returns false if the link's queue is full and the datagram was tail dropped.
+	 */
+	private boolean emit(Packet packet, int length, SocketAddress address) throws IOException {
+		if (!impairment.delays()) {
+			batcher.queue(packet, length, address);
+			return true;
+		}
+
+		long now = System.nanoTime();
+		long due = now;
+		if (impairment.getRate() > 0) {
+			long start = Math.max(now, linkFreeAt);
+			if (start - now > Impairment.QUEUE_LIMIT) {
+				return false;
+			}
+			linkFreeAt = start + length * 1_000_000_000L / impairment.getRate();
+			due = linkFreeAt;
+		}
+		due += impairment.getDelay();
+		if (impairment.getJitter() > 0) {
+			due += random.nextLong(-impairment.getJitter(), impairment.getJitter() + 1);
+		}
+		if (impairment.getReorder() > 0 && random.nextDouble() < impairment.getReorder()) {
+			due += Impairment.REORDER_HOLD;
+		}
+
+		if (due <= now && held.isEmpty()) {
+			batcher.queue(packet, length, address);
+			return true;
+		}
+		hold(packet, length, address, Math.max(due, now));
+		return true;
+	}
+
+	/*
+	 * Copies the datagram into a free holding buffer and makes sure the release timer fires by its due time
+	 */
+	private void hold(Packet packet, int length, SocketAddress address, long due) {
+		Held h = free.isEmpty() ? new Held() : free.pop();
+		ByteBuffer src = packet.getBuffer();
+		if (h.data == null || h.data.capacity() < length) {
+			BufferPool.SHARED.release(h.data);
+			h.data = BufferPool.SHARED.borrow(src.capacity());	//Room for any packet from the same buffer, so the holder is never outgrown
+		}
+		src.limit(length).position(0);
+		h.data.clear();
+		h.data.put(src).flip();
+		src.clear();
+		h.target = address;
+		h.due = due;
+		h.order = order++;
+		held.add(h);
+
+		if (!releaseTimer.isScheduled() || due < releaseTimer.getDeadline()) {
+			timers.schedule(releaseTimer, due);
+		}
+	}
+
+	/*
+	 * Queues every held datagram that is due, then waits for the next one
+	 */
+	private void release() {
+		long now = System.nanoTime();
+		try {
+			while (!held.isEmpty() && held.peek().due <= now) {
+				Held h = held.poll();
+				batcher.queue(h.data, h.target);
+				h.target = null;
+				free.push(h);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (!held.isEmpty()) {
+			timers.schedule(releaseTimer, held.peek().due);
+		}
+	}
+
+	/*
+	 * Drops whatever is still held back and gives the holding buffers back to the pool
+	 */
+	public void close() {
+		timers.cancel(releaseTimer);
+		for (Held h : held) {
+			BufferPool.SHARED.release(h.data);
+		}
+		for (Held h : free) {
+			BufferPool.SHARED.release(h.data);
+		}
+		held.clear();
+		free.clear();
+	}
+
+	public DatagramBatcher getBatcher() {
+		return batcher;
+	}
+
+	/*
+	 * A datagram waiting for its simulated delay
+	 */
+	private static final class Held {
+		private ByteBuffer data;
+		private SocketAddress target;
+		private long due;
+		private long order;
+	}
+}
@@ -0,0 +1,65 @@
+package edu.metrostate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread, over a power of two ring.
+ * The producer only writes tail and the consumer only writes head, so neither side ever waits on the other or
+ * retries a CAS; a full or empty queue is reported to the caller, who decides how to wait.
+ *
+ * Both indexes are written with volatile stores, so a thread that publishes to the queue and then reads a flag of
+ * the other side (or sets its own flag and then looks at the queue again) can't miss the other side's update.
+ */
+public class SpscQueue<T> {
+
+	private final Object[] items;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();		//Next item to poll, written by the consumer
+	private final AtomicLong tail = new AtomicLong();		//Next slot to offer into, written by the producer
+
+	/*
+	 * capacity is rounded up to a power of two
+	 */
+	public SpscQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		items = new Object[size];
+		mask = size - 1;
+	}
+
+	/*
+	 * Producer only. Returns false if the queue is full.
+	 */
+	public boolean offer(T item) {
+		long t = tail.get();
+		if (t - head.get() == items.length) {
+			return false;
+		}
+		items[(int) t & mask] = item;
+		tail.set(t + 1);
+		return true;
+	}
+
+	/*
+	 * Consumer only. Returns null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+		int index = (int) h & mask;
+		T item = (T) items[index];
+		items[index] = null;
+		head.set(h + 1);
+		return item;
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+}
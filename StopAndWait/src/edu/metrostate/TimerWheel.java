@@ -0,0 +1,141 @@
+package edu.metrostate;
+
+/*
+ * A hashed timer wheel for retransmission deadlines. Scheduling and cancelling are O(1) and
+ * allocation free: owners create their Timeout once and reschedule it for every packet.
+ * Deadlines are System.nanoTime() values. Not thread safe, it belongs to one EventLoop.
+ */
+public class TimerWheel {
+
+	/*
+	 * A reusable timer. It is scheduled in at most one bucket at a time.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private long deadline;
+		private int bucket = -1;							//-1 when not scheduled
+		private Timeout prev;
+		private Timeout next;
+
+		public Timeout(Runnable pTask) {
+			this.task = pTask;
+		}
+
+		public boolean isScheduled() {
+			return bucket >= 0;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+
+	private final long tickNanos;
+	private final Timeout[] buckets;
+	private final int mask;
+	private long currentTick;								//The next tick whose bucket has not been expired yet
+	private int size;
+
+	/*
+	 * The number of buckets is rounded up to a power of two. Deadlines further out than one turn of the wheel simply wait for later turns.
+	 */
+	public TimerWheel(long pTickNanos, int numBuckets) {
+		int n = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+		this.tickNanos = pTickNanos;
+		this.buckets = new Timeout[n];
+		this.mask = n - 1;
+		this.currentTick = System.nanoTime() / tickNanos;
+	}
+
+	/*
+	 * Schedules (or reschedules) the timeout to run once deadline has passed
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		cancel(timeout);
+		timeout.deadline = deadline;
+		long tick = Math.max(deadline / tickNanos, currentTick);
+		int bucket = (int) (tick & mask);
+
+		timeout.bucket = bucket;
+		timeout.prev = null;
+		timeout.next = buckets[bucket];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[bucket] = timeout;
+		size++;
+	}
+
+	/*
+	 * Cancels the timeout if it is scheduled
+	 */
+	public void cancel(Timeout timeout) {
+		if (timeout.bucket < 0) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.bucket = -1;
+		timeout.prev = null;
+		timeout.next = null;
+		size--;
+	}
+
+	/*
+	 * Runs every timeout whose deadline is at or before now. Tasks may schedule or cancel other timeouts.
+	 */
+	public void expire(long now) {
+		long nowTick = now / tickNanos;
+		long ticks = Math.min(nowTick - currentTick + 1, buckets.length);
+
+		for (long i = 0; i < ticks && size > 0; i++) {
+			int bucket = (int) ((currentTick + i) & mask);
+			Timeout timeout = buckets[bucket];
+
+			while (timeout != null) {
+				if (timeout.deadline <= now) {
+					cancel(timeout);
+					timeout.task.run();
+					timeout = buckets[bucket];			//The task may have changed the bucket, start over
+				} else {
+					timeout = timeout.next;
+				}
+			}
+		}
+		currentTick = Math.max(currentTick, nowTick);
+	}
+
+	/*
+	 * Returns how long the event loop may sleep before the earliest deadline, or -1 if nothing is scheduled.
+	 * Only walks buckets up to the first one holding a timeout due in this turn of the wheel.
+	 */
+	public long nanosToNextExpiry(long now) {
+		if (size == 0) {
+			return -1;
+		}
+		for (int i = 0; i < buckets.length; i++) {
+			long tickEnd = (currentTick + i + 1) * tickNanos;
+			long earliest = Long.MAX_VALUE;
+
+			for (Timeout timeout = buckets[(int) ((currentTick + i) & mask)]; timeout != null; timeout = timeout.next) {
+				if (timeout.deadline < tickEnd) {
+					earliest = Math.min(earliest, timeout.deadline);
+				}
+			}
+			if (earliest != Long.MAX_VALUE) {
+				return Math.max(0, earliest - now);
+			}
+		}
+		return buckets.length * tickNanos;
+	}
+
+	public int size() {
+		return size;
+	}
+}
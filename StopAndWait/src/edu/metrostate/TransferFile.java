@@ -0,0 +1,390 @@
+package edu.metrostate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * The output file of one transfer, shared by the ReceiverSessions of all of its streams.
+ * Every stream writes its payloads at their own file offsets, and the file is complete once
+ * as many streams have sent FIN as their FIN packets say there are.
+ *
+ * Writes go through a WriteBehind, so the event loop only copies a payload and the file is written, and forced as the
+ * FlushPolicy says, by a thread of its own. Everything but the journal's bitmap belongs to one thread or the other:
+ * the loop stages writes and closes the file, the writer writes, marks blocks and syncs. With a journal the writer also
+ * counts the bytes written, by the blocks it marks, and the loop only reads the count once the writer has finished.
+ *
+ * A resumable transfer keeps a journal next to the file (its name plus JOURNAL_SUFFIX): a header with the file length
+ * and block size, then a bitmap with a bit for every block of the file that has been written. A block is a whole
+ * packet's payload, or the pieces of it that inflated slices of a compressed stream cover. A block is marked once the
+ * writer has written all of it, a block written again isn't counted again, and the bitmap is written out at least every
+ * JOURNAL_SYNC ms, only after the file itself has been forced to disk, so the journal never claims data that a crash could lose. If the receiver is
+ * started again on the same file with a matching journal, the file is kept and the streams skip the blocks already
+ * in it. The journal is deleted once the transfer is complete.
+ *
+ * A stream that verifies its range registers its MerkleTree with addDigest(). The writer credits each tree with what it
+ * writes and, between rounds of writes, reads back the leaves that are written in full and hashes them, so the event
+ * loop never touches the disk for it. Parts of a range written again to repair it go through rewrite(), which doesn't
+ * count them again.
+ */
+public class TransferFile {
+
+	public static final String JOURNAL_SUFFIX = ".journal";
+	private static final int JOURNAL_MAGIC = 0x534A4E4C;		//"SJNL"
+	private static final int JOURNAL_HEADER = 16;				//magic(4) blockSize(4) fileLength(8)
+	public static final long JOURNAL_SYNC = 1000;
+	private static final int HASH_CHUNK = 256 * 1024;			//Read back at a time to hash a leaf
+
+	private final File file;
+	private final long length;
+	private final FileChannel out;
+	private final WriteBehind writer;
+	private int closedStreams = 0;
+	private long bytesWritten;								//With a journal, writer thread only until the writer finishes
+	private long lastActivity;
+	private boolean complete = false;
+	private boolean closed = false;
+	private final EventLog log;
+	private final int blockSize;
+	private final File journalFile;							//null when the transfer isn't resumable
+	private final FileChannel journal;
+	private final ByteBuffer blocks;						//The bitmap, a long for every 64 blocks
+	private int dirtyLow = Integer.MAX_VALUE;				//Range of bitmap longs changed since the last sync, writer thread only
+	private int dirtyHigh = -1;
+	private long resumedBytes;
+	private final HashMap<Long, Long> partBlocks = new HashMap<>();	//Bytes written of blocks not yet whole, writer thread only
+	private final CopyOnWriteArrayList<MerkleTree> digests = new CopyOnWriteArrayList<>();
+
+	/*
+	 * Creates the file at its final length, as announced in the SYN. Java can't fallocate, so on most file systems
+	 * this makes a sparse file, but the size is right from the start and writes never have to extend it.
+	 * A resumable file with a journal for the same length and block size is opened as it is instead, with the blocks
+	 * the journal lists counted as already written.
+	 * handOffSignal must run handOff() of every open TransferFile on the event loop that writes to them.
+	 */
+	public TransferFile(File pFile, long pLength, int pBlockSize, boolean resumable, FlushPolicy policy, EventLoop.Signal handOffSignal,
+			EventLog pLog) throws IOException {
+		this.file = pFile;
+		this.length = pLength;
+		this.blockSize = pBlockSize;
+		this.log = pLog;
+		this.lastActivity = System.currentTimeMillis();
+		long words = resumable ? (length + 64L * blockSize - 1) / (64L * blockSize) : 0;
+		if (words > Integer.MAX_VALUE / 8) {
+			throw new IOException("A " + length + " byte file has too many " + blockSize + " byte blocks to journal, use bigger packets");
+		}
+		blocks = ByteBuffer.allocate((int) words * 8);
+
+		if (!resumable) {
+			journalFile = null;
+			journal = null;
+		} else {
+			journalFile = new File(file.getPath() + JOURNAL_SUFFIX);
+			journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		if (journal != null && loadJournal()) {
+			out = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			bytesWritten = resumedBytes;
+			log.message("Resuming " + file.getPath() + ": " + resumedBytes / 1000 + " of " + length / 1000 + " KB already received");
+		} else {
+			out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			if (length > 0) {
+				out.write(ByteBuffer.allocate(1), length - 1);
+			}
+			if (journal != null) {
+				ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+				header.putInt(JOURNAL_MAGIC).putInt(blockSize).putLong(length).flip();
+				Arrays.fill(blocks.array(), (byte) 0);
+				journal.truncate(0);
+				journal.write(header, 0);
+				journal.write(blocks.duplicate(), JOURNAL_HEADER);
+				journal.force(false);
+			}
+		}
+		writer = new WriteBehind(out, length, this, policy, journal != null ? JOURNAL_SYNC * 1_000_000L : 0, handOffSignal, "write-" + file.getName());
+	}
+
+	/*
+	 * Reads the journal into the bitmap if it belongs to a file of this length with this block size that is still there.
+	 * Returns whether the transfer can resume from it.
+	 */
+	private boolean loadJournal() throws IOException {
+		if (!file.isFile() || file.length() != length || journal.size() != JOURNAL_HEADER + blocks.capacity()) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+		journal.read(header, 0);
+		header.flip();
+		if (header.getInt() != JOURNAL_MAGIC || header.getInt() != blockSize || header.getLong() != length) {
+			return false;
+		}
+		while (blocks.hasRemaining()) {
+			if (journal.read(blocks, JOURNAL_HEADER + blocks.position()) < 0) {
+				return false;
+			}
+		}
+		blocks.clear();
+
+		for (int i = 0; i < blocks.capacity() / 8; i++) {
+			resumedBytes += (long) Long.bitCount(blocks.getLong(i * 8)) * blockSize;
+		}
+		long lastBlock = (length - 1) / blockSize;
+		if (length > 0 && hasBlock(lastBlock)) {
+			resumedBytes -= blockSize - (length - lastBlock * blockSize);
+		}
+		return true;
+	}
+
+	/*
+	 * Queues the remaining bytes of src to be written at position in the file. Returns the number of bytes.
+	 * Without a journal they are counted here, with one the writer counts the blocks they complete, see written().
+	 * Throws whatever error the writer stopped on.
+	 */
+	public int write(ByteBuffer src, long position) throws IOException {
+		int count = src.remaining();
+		writer.write(src, position);
+		if (journal == null) {
+			bytesWritten += count;
+		}
+		return count;
+	}
+
+	/*
+	 * Queues the remaining bytes of src to be written again at position, over data that failed verification, without
+	 * counting them. Returns the number of bytes.
+	 */
+	public int rewrite(ByteBuffer src, long position) throws IOException {
+		int count = src.remaining();
+		writer.write(src, position);
+		return count;
+	}
+
+	/*
+	 * Hands the writer the data staged so far, when it has nothing else to do
+	 */
+	public void handOff() {
+		if (!closed) {
+			writer.handOff();
+		}
+	}
+
+	/*
+	 * Starts crediting tree with what the writer writes. credited is where the tree's range was already written up to by
+	 * an earlier run, so those leaves are hashed too.
+	 */
+	public void addDigest(MerkleTree tree, long credited) {
+		digests.add(tree);
+		tree.credit(tree.getStart(), credited - tree.getStart());
+		writer.wakeWriter();
+	}
+
+	public void removeDigest(MerkleTree tree) {
+		digests.remove(tree);
+	}
+
+	/*
+	 * Writer thread only. Reads back every leaf that is now written in full and hashes it.
+	 */
+	void hashLeaves() throws IOException {
+		ByteBuffer chunk = null;
+		try {
+			for (MerkleTree tree : digests) {
+				int leaf;
+				while ((leaf = tree.nextPending()) >= 0) {
+					if (chunk == null) {
+						chunk = BufferPool.SHARED.borrow(HASH_CHUNK);
+					}
+					MessageDigest digest = MerkleTree.newLeaf();
+					long end = tree.leafEnd(leaf);
+					for (long position = tree.leafStart(leaf); position < end;) {
+						chunk.clear().limit((int) Math.min(HASH_CHUNK, end - position));
+						while (chunk.hasRemaining()) {
+							if (out.read(chunk, position + chunk.position()) < 0) {
+								throw new IOException(file.getPath() + " ended before " + end);
+							}
+						}
+						chunk.flip();
+						position += chunk.remaining();
+						digest.update(chunk);
+					}
+					tree.setLeaf(leaf, digest.digest());
+				}
+			}
+		} finally {
+			if (chunk != null) {
+				BufferPool.SHARED.release(chunk);
+			}
+		}
+	}
+
+	/*
+	 * Writer thread only. Credits the trees with count bytes just written at position and marks the blocks they complete,
+	 * counting the bytes of each block newly marked. Part of a block is kept in partBlocks until the rest of it is written,
+	 * which a block cut between the inflated slices of a compressed stream needs. Returns the number of blocks marked.
+	 */
+	int written(long position, int count) {
+		for (MerkleTree tree : digests) {
+			tree.credit(position, count);
+		}
+		if (journal == null || count == 0) {
+			return 0;
+		}
+		long end = position + count;
+		int marked = 0;
+		synchronized (blocks) {
+			for (long block = position / blockSize; block <= (end - 1) / blockSize; block++) {
+				if (hasBlock(block)) {
+					continue;
+				}
+				long blockStart = block * blockSize;
+				long blockLength = Math.min(blockSize, length - blockStart);
+				long part = Math.min(end, blockStart + blockLength) - Math.max(position, blockStart);
+				if (part < blockLength) {
+					long sum = partBlocks.merge(block, part, Long::sum);
+					if (sum < blockLength) {
+						continue;
+					}
+					partBlocks.remove(block);
+				}
+				markBlock(block);
+				bytesWritten += blockLength;
+				marked++;
+			}
+		}
+		return marked;
+	}
+
+	/*
+	 * The number of whole blocks from offset on that are already in the file, which is how many packets a stream
+	 * whose range starts there can skip. Always 0 unless offset is on a block boundary of a resumed file and the stream's
+	 * payloads are as big as its blocks.
+	 */
+	public long resumablePackets(long offset, int payloadSize) {
+		if (journal == null || payloadSize != blockSize || offset % blockSize != 0) {
+			return 0;
+		}
+		long first = offset / blockSize;
+		long block = first;
+		long blockCount = (long) blocks.capacity() * 8;
+		synchronized (blocks) {
+			while (block < blockCount && hasBlock(block)) {
+				//Skip whole words of blocks that are in, so resuming far into a huge file doesn't test every bit
+				if ((block & 63) == 0 && block + 64 <= blockCount && blocks.getLong((int) (block >>> 6) * 8) == -1L) {
+					block += 64;
+				} else {
+					block++;
+				}
+			}
+		}
+		return block - first;
+	}
+
+	private boolean hasBlock(long block) {
+		return (blocks.getLong((int) (block >>> 6) * 8) & (1L << block)) != 0;
+	}
+
+	/*
+	 * Sets the block's bit unless it was already set
+	 */
+	private void markBlock(long block) {
+		int word = (int) (block >>> 6);
+		long bits = blocks.getLong(word * 8);
+		if ((bits & (1L << block)) == 0) {
+			blocks.putLong(word * 8, bits | (1L << block));
+			dirtyLow = Math.min(dirtyLow, word);
+			dirtyHigh = Math.max(dirtyHigh, word);
+		}
+	}
+
+	/*
+	 * Writer thread only, or the loop once the writer has finished. Forces the file's data to disk, then writes the part of the bitmap
+	 * that changed since the last sync and forces that. Only the writer marks blocks, so nothing can be marked between the two.
+	 */
+	void sync() throws IOException {
+		out.force(false);
+		if (dirtyHigh < 0) {
+			return;
+		}
+		ByteBuffer dirty;
+		synchronized (blocks) {
+			dirty = blocks.duplicate();
+		}
+		dirty.limit((dirtyHigh + 1) * 8).position(dirtyLow * 8);
+		long position = JOURNAL_HEADER + dirtyLow * 8L;
+		while (dirty.hasRemaining()) {
+			position += journal.write(dirty, position);
+		}
+		journal.force(false);
+		dirtyLow = Integer.MAX_VALUE;
+		dirtyHigh = -1;
+	}
+
+	/*
+	 * Records the FIN of one stream and closes the file once every stream is done. Returns whether the transfer is complete.
+	 */
+	public boolean streamClosed(int streamCount) throws IOException {
+		if (++closedStreams >= streamCount) {
+			complete = true;
+			close();
+		}
+		return complete;
+	}
+
+	/*
+	 * Waits for the writer to finish, then closes the file, complete or not. An incomplete resumable file is always forced
+	 * and journaled before the journal is closed.
+	 */
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			boolean done = false;
+			try {
+				writer.close(journal != null && !complete);
+				//The writer has finished, so its count of the bytes written is final
+				done = complete && bytesWritten == length;
+				if (journal != null && !done && complete) {
+					sync();
+				}
+			} finally {
+				if (journal != null) {
+					journal.close();
+					if (done) {
+						Files.deleteIfExists(journalFile.toPath());
+					}
+				}
+				out.close();
+				String status = done ? "" : "Incomplete transfer: ";
+				log.message(status + bytesWritten / 1000 + " of " + length / 1000 + " KB saved to " + file.getPath());
+				log.message(writer.summary());
+			}
+		}
+	}
+
+	/*
+	 * Keeps the transfer from being expired while any of its streams is still active
+	 */
+	public void touch() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastActivity() {
+		return lastActivity;
+	}
+}
@@ -0,0 +1,200 @@
+package edu.metrostate;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms for everything a Sender or Receiver does, shared by all of its streams and sessions.
+ * Every update is a LongAdder increment or a LatencyHistogram record, so the data path never locks or allocates,
+ * and JMX or the periodic summary can read them from any thread while the transfer runs.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder packetsReceived = new LongAdder();
+	private final LongAdder retransmits = new LongAdder();
+	private final LongAdder drops = new LongAdder();				//Dropped on purpose by SketchyServerSocket
+	private final LongAdder corruptions = new LongAdder();			//Corrupted on purpose on the way out, or failing the checksum on the way in
+	private final LongAdder duplicates = new LongAdder();			//Duplicate ACKs at the sender, duplicate or out of window packets at the receiver
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder recovered = new LongAdder();			//Lost packets the receiver rebuilt from parity instead of waiting for a resend
+	private final LongAdder bytesDelivered = new LongAdder();		//File data acknowledged (sender) or written (receiver) for the first time
+	private final LatencyHistogram rtt = new LatencyHistogram();
+	private final LatencyHistogram latency = new LatencyHistogram();	//First send to acknowledgement of each packet, retransmissions included
+	private volatile long firstDelivery;
+	private volatile long lastDelivery;
+	private ObjectName name;
+
+	public void packetSent() {
+		packetsSent.increment();
+	}
+
+	public void packetReceived() {
+		packetsReceived.increment();
+	}
+
+	public void retransmit() {
+		retransmits.increment();
+	}
+
+	public void drop() {
+		drops.increment();
+	}
+
+	public void corruption() {
+		corruptions.increment();
+	}
+
+	public void duplicate() {
+		duplicates.increment();
+	}
+
+	public void timeout() {
+		timeouts.increment();
+	}
+
+	public void recovered() {
+		recovered.increment();
+	}
+
+	public void delivered(long bytes) {
+		long now = System.nanoTime();
+		if (firstDelivery == 0) {
+			firstDelivery = now;
+		}
+		lastDelivery = now;
+		bytesDelivered.add(bytes);
+	}
+
+	public LatencyHistogram getRtt() {
+		return rtt;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/*
+	 * Makes the metrics visible to JMX clients such as jconsole as edu.metrostate:type=TYPE,name=NAME
+	 */
+	public void register(String type, String pName) {
+		try {
+			name = new ObjectName("edu.metrostate:type=" + type + ",name=" + ObjectName.quote(pName));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			name = null;
+			System.err.println("Metrics not registered with JMX: " + e.getMessage());
+		}
+	}
+
+	public void unregister() {
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				System.err.println("Metrics not unregistered from JMX: " + e.getMessage());
+			}
+			name = null;
+		}
+	}
+
+	/*
+	 * Sent plus received packets, so a caller can tell whether anything happened since it last looked
+	 */
+	public long getActivity() {
+		return packetsSent.sum() + packetsReceived.sum();
+	}
+
+	/*
+	 * One line with every counter, the RTT and latency percentiles if any were measured, and the goodput
+	 */
+	public String summary() {
+		String line = String.format("Stats: %d sent, %d received, %d resent, %d dropped, %d corrupt, %d dupl, %d timeouts, ",
+				getPacketsSent(), getPacketsReceived(), getRetransmits(), getDrops(), getCorruptions(), getDuplicates(), getTimeouts());
+		if (getRecovered() > 0) {
+			line = line.concat(getRecovered() + " recovered by FEC, ");
+		}
+		if (rtt.getCount() > 0) {
+			line = line.concat(String.format("RTT p50 %.3f p99 %.3f ms, latency p50 %.3f p99 %.3f ms, ",
+					getRttP50() / 1e3, getRttP99() / 1e3, getLatencyP50() / 1e3, getLatencyP99() / 1e3));
+		}
+		return line.concat(String.format("%d KB at %.2f MB/s", getBytesDelivered() / 1000, getGoodput()));
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	@Override
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	@Override
+	public long getDrops() {
+		return drops.sum();
+	}
+
+	@Override
+	public long getCorruptions() {
+		return corruptions.sum();
+	}
+
+	@Override
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getRecovered() {
+		return recovered.sum();
+	}
+
+	@Override
+	public long getBytesDelivered() {
+		return bytesDelivered.sum();
+	}
+
+	/*
+	 * File data delivered per second between the first and the last delivery
+	 */
+	@Override
+	public double getGoodput() {
+		long nanos = lastDelivery - firstDelivery;
+		return nanos > 0 ? getBytesDelivered() * 1e3 / nanos : 0;
+	}
+
+	@Override
+	public long getRttP50() {
+		return rtt.percentile(0.50) / 1000;
+	}
+
+	@Override
+	public long getRttP99() {
+		return rtt.percentile(0.99) / 1000;
+	}
+
+	@Override
+	public long getLatencyP50() {
+		return latency.percentile(0.50) / 1000;
+	}
+
+	@Override
+	public long getLatencyP99() {
+		return latency.percentile(0.99) / 1000;
+	}
+}
@@ -0,0 +1,36 @@
+package edu.metrostate;
+
+/*
+ * The JMX view of a TransferMetrics, registered with the platform MBean server under edu.metrostate
+ * while a Sender or Receiver runs. Times are in microseconds, rates in MB/s.
+ */
+public interface TransferMetricsMBean {
+
+	long getPacketsSent();
+
+	long getPacketsReceived();
+
+	long getRetransmits();
+
+	long getDrops();
+
+	long getCorruptions();
+
+	long getDuplicates();
+
+	long getTimeouts();
+
+	long getRecovered();
+
+	long getBytesDelivered();
+
+	double getGoodput();
+
+	long getRttP50();
+
+	long getRttP99();
+
+	long getLatencyP50();
+
+	long getLatencyP99();
+}
@@ -0,0 +1,41 @@
+package edu.metrostate;
+
+/*
+ * The sliding window protocols supported by the Sender and Receiver.
+ * A window size of 1 behaves like the original stop and wait protocol in either mode.
+ */
+public enum WindowMode {
+
+	/*
+	 * Cumulative ACKs, the receiver discards out of order packets and a timeout resends the whole window
+	 */
+	GO_BACK_N("gbn"),
+
+	/*
+	 * Individual ACKs, the receiver buffers out of order packets and only the timed out packet is resent
+	 */
+	SELECTIVE_REPEAT("sr");
+
+	private final String name;
+
+	private WindowMode(String pName) {
+		this.name = pName;
+	}
+
+	/*
+	 * Parses the command line name of a mode (gbn or sr)
+	 */
+	public static WindowMode parse(String pName) {
+		for (WindowMode mode : values()) {
+			if (mode.name.equalsIgnoreCase(pName)) {
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("Unknown window mode: " + pName + " (expected gbn or sr)");
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
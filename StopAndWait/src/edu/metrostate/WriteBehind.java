@@ -0,0 +1,387 @@
+package edu.metrostate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/*
+ * The disk stage of a TransferFile. The receiver's event loop copies each payload into a ring buffer borrowed from the
+ * BufferPool and goes straight on to ACK it; a thread of its own writes the ring out to the file and forces it to disk
+ * as the FlushPolicy says, so how fast the disk is shows up in how far this stage runs behind and not in the ACKs.
+ *
+ * The ring is handed over in extents, runs of payloads that follow each other in the file, up to MAX_EXTENT. An early
+ * Selective Repeat packet only takes up its own bytes. The writer collects extents until it has MIN_WRITE bytes or the
+ * oldest is HOLD old, sorts them by file offset and writes every contiguous run with one gathering write, so the
+ * interleaved payloads of several streams, or a hole filled after the packets behind it, still reach the disk in large
+ * writes. The loop only wakes the writer once MIN_WRITE bytes are waiting; when the writer is idle and the loop still
+ * has an open extent the writer raises the loop's hand off signal, so no data sits in the ring for much longer than HOLD.
+ * A payload is never split between extents, so the writer sees every whole block it has to journal in one piece.
+ *
+ * Between rounds the writer also hashes whatever the file's MerkleTrees have waiting, see TransferFile.hashLeaves().
+ *
+ * Extents go round two SpscQueues, ready to the writer and free back to the loop, and the writer publishes how far
+ * it has written in consumed. If the disk falls a whole ring behind, the loop waits for it, as it always had to.
+ */
+public class WriteBehind implements Runnable {
+
+	private static final int RING = 16 * 1024 * 1024;		//At most, a smaller file gets a ring its own size
+	private static final int MIN_RING = 1024 * 1024;		//Room for the biggest payload, an inflated one
+	private static final int EXTENTS = 1024;
+	private static final int MAX_EXTENT = 4 * 1024 * 1024;
+	private static final int MIN_WRITE = 256 * 1024;
+	private static final long HOLD = 20_000_000L;			//20 ms
+	private static final int BATCH = 256;					//Extents per round of writes, which is also the most one gathering write takes
+	private static final Comparator<Extent> BY_POSITION = Comparator.comparingLong(e -> e.position);
+
+	private final FileChannel out;
+	private final TransferFile file;
+	private final FlushPolicy policy;
+	private final long minInterval;						//Longest time between forces whatever the policy, 0 for none
+	private final int ringSize;
+	private final ByteBuffer ring;
+	private final Extent[] batch = new Extent[BATCH];		//Writer thread only, the extents of the next round of writes
+	private final ByteBuffer[] views = new ByteBuffer[BATCH];	//The writer's views of the ring, one for each extent of the batch
+	private final SpscQueue<Extent> ready = new SpscQueue<>(EXTENTS);
+	private final SpscQueue<Extent> free = new SpscQueue<>(EXTENTS);
+	private final EventLoop.Signal handOffSignal;			//Makes the loop hand over its extent once the writer has nothing else
+	private final Thread thread;
+	private volatile Thread loopThread;
+	private volatile long consumed;						//Ring bytes the writer is done with, everything before the next extent it writes
+	private volatile boolean writerWaiting = false;
+	private volatile boolean loopWaiting = false;
+	private volatile boolean holding = false;			//The loop has an extent that hasn't been handed over
+	private volatile boolean closing = false;
+	private volatile boolean syncAtEnd;					//Set by close() for a file that has to be forced whatever the policy
+	private volatile IOException failure;
+	private Extent current;								//Loop thread only, the extent being filled
+	private long tail;										//Ring bytes used by the loop, including the gaps left where a payload didn't fit before the end
+	private int unsignalled;								//Bytes handed over since the writer was last woken
+	private long stalls;
+	private int batchSize;									//Writer thread only
+	private long batchBytes;
+	private long unforcedBytes;
+	private long lastForce;
+	private long writes;
+	private long bytesOut;
+	private long forces;
+
+	/*
+	 * A run of the ring on its way to one place in the file
+	 */
+	private static final class Extent {
+		private long position;								//In the file
+		private long start;									//In the ring, counted like tail
+		private int length;
+		private long since;									//When its first payload was copied in
+	}
+
+	/*
+	 * length is the file's length, minInterval the longest it may go between forces whatever the policy, 0 to leave that to the policy
+	 */
+	public WriteBehind(FileChannel pOut, long length, TransferFile pFile, FlushPolicy pPolicy, long pMinInterval, EventLoop.Signal pHandOffSignal,
+			String name) {
+		this.out = pOut;
+		this.ring = BufferPool.SHARED.borrow((int) Math.min(RING, Math.max(MIN_RING, length)));
+		this.ring.clear();									//The whole of the pool's buffer, which may be more than asked for
+		this.ringSize = ring.capacity();
+		this.file = pFile;
+		this.policy = pPolicy;
+		this.minInterval = pMinInterval;
+		this.handOffSignal = pHandOffSignal;
+		for (int i = 0; i < EXTENTS; i++) {
+			free.offer(new Extent());
+		}
+		for (int i = 0; i < BATCH; i++) {
+			views[i] = ring.duplicate();
+		}
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/*
+	 * Loop thread only. Copies the remaining bytes of src, one payload, to be written at position.
+	 * Throws whatever stopped the writer.
+	 */
+	public void write(ByteBuffer src, long position) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		int count = src.remaining();
+		long start = tail;
+		int index = (int) (start % ringSize);
+		if (index + count > ringSize) {
+			start += ringSize - index;							//Payloads never wrap, skip to the start of the ring
+		}
+		boolean extend = current != null && start == tail && current.position + current.length == position
+				&& current.length + count <= MAX_EXTENT;
+		if (!extend && current != null) {
+			publish();
+		}
+		if (start + count - consumed > ringSize) {
+			awaitSpace(start + count);
+		}
+
+		if (current == null) {
+			current = takeExtent();
+			current.position = position;
+			current.start = start;
+			current.length = 0;
+			current.since = System.nanoTime();
+			holding = true;
+			if (writerWaiting) {
+				handOffSignal.raise();
+			}
+		}
+		ring.put((int) (start % ringSize), src, src.position(), count);
+		src.position(src.limit());
+		tail = start + count;
+		current.length += count;
+
+		if (writerWaiting && unsignalled + current.length >= MIN_WRITE) {
+			publish();
+		}
+	}
+
+	/*
+	 * Loop thread only. Hands over the extent being filled if it is worth a write of its own or has waited long enough.
+	 */
+	public void handOff() {
+		if (current != null && (current.length >= MIN_WRITE || System.nanoTime() - current.since >= HOLD)) {
+			publish();
+			wake();
+		}
+	}
+
+	private void publish() {
+		holding = false;
+		ready.offer(current);
+		unsignalled += current.length;
+		current = null;
+		if (writerWaiting && unsignalled >= MIN_WRITE) {
+			wake();
+		}
+	}
+
+	private void wake() {
+		unsignalled = 0;
+		LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Wakes the writer for work that isn't an extent, leaves to hash
+	 */
+	public void wakeWriter() {
+		LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Waits until the writer is done with the ring up to end - ringSize, which it is unless the disk is a whole ring behind
+	 */
+	private void awaitSpace(long end) throws IOException {
+		stalls++;
+		park(() -> end - consumed <= ringSize);
+	}
+
+	private Extent takeExtent() throws IOException {
+		Extent extent = free.poll();
+		if (extent == null) {
+			stalls++;
+			park(() -> !free.isEmpty());
+			extent = free.poll();
+		}
+		return extent;
+	}
+
+	/*
+	 * Hands over everything, then parks the loop thread until the writer has made done true or throws whatever stopped it
+	 */
+	private void park(BooleanSupplier done) throws IOException {
+		if (current != null) {
+			publish();
+		}
+		loopThread = Thread.currentThread();
+		loopWaiting = true;
+		wake();
+		try {
+			while (!done.getAsBoolean()) {
+				if (failure != null) {
+					throw failure;
+				}
+				LockSupport.park(this);
+			}
+		} finally {
+			loopWaiting = false;
+		}
+	}
+
+	/*
+	 * The writer's thread: writes extents in rounds as they are handed over and forces them when the policy says, until closed
+	 */
+	@Override
+	public void run() {
+		lastForce = System.nanoTime();
+		try {
+			while (true) {
+				collect();
+				if (batchSize > 0 && (batchBytes >= MIN_WRITE || batchSize == BATCH || closing || loopWaiting
+						|| System.nanoTime() - batch[0].since >= HOLD)) {
+					writeBatch();
+				} else if (closing) {
+					if (!collect()) {
+						break;
+					}
+				} else {
+					writerWaiting = true;
+					if (holding) {
+						handOffSignal.raise();
+					}
+					if (!collect()) {
+						idle();
+					}
+					writerWaiting = false;
+				}
+				file.hashLeaves();
+				if (policy.due(unforcedBytes, System.nanoTime() - lastForce, minInterval)) {
+					force();
+				}
+			}
+			if (unforcedBytes > 0 && (policy.forcesAtEnd() || syncAtEnd)) {
+				force();
+			}
+		} catch (IOException e) {
+			failure = e;
+			if (loopWaiting) {
+				LockSupport.unpark(loopThread);
+			}
+		}
+	}
+
+	/*
+	 * Moves the extents that are ready into the batch. Returns whether there were any.
+	 */
+	private boolean collect() {
+		int before = batchSize;
+		Extent extent;
+		while (batchSize < BATCH && (extent = ready.poll()) != null) {
+			batch[batchSize++] = extent;
+			batchBytes += extent.length;
+		}
+		return batchSize > before;
+	}
+
+	/*
+	 * Parks the writer until it is woken, the batch or the loop's extent has waited HOLD, or a force is due
+	 */
+	private void idle() {
+		long now = System.nanoTime();
+		long wait = Long.MAX_VALUE;
+		if (batchSize > 0) {
+			wait = Math.max(1, batch[0].since + HOLD - now);
+		} else if (holding) {
+			wait = HOLD;
+		}
+		long forceWait = unforcedBytes > 0 ? policy.maxWait(minInterval) : 0;
+		if (forceWait > 0) {
+			wait = Math.min(wait, Math.max(1, lastForce + forceWait - now));
+		}
+		if (wait == Long.MAX_VALUE) {
+			LockSupport.park(this);
+		} else {
+			LockSupport.parkNanos(this, wait);
+		}
+	}
+
+	/*
+	 * Writes the batch in file order, one gathering write for every run of extents that follow each other,
+	 * then gives their part of the ring back to the loop
+	 */
+	private void writeBatch() throws IOException {
+		long end = batch[batchSize - 1].start + batch[batchSize - 1].length;	//Extents arrive in ring order
+		Arrays.sort(batch, 0, batchSize, BY_POSITION);
+
+		for (int first = 0; first < batchSize;) {
+			long position = batch[first].position;
+			int last = first;
+			view(first);
+			while (last + 1 < batchSize && batch[last + 1].position == batch[last].position + batch[last].length) {
+				view(++last);
+			}
+			long runEnd = batch[last].position + batch[last].length;
+			if (first == last) {
+				while (views[first].hasRemaining()) {
+					position += out.write(views[first], position);
+				}
+			} else {
+				out.position(position);
+				while (views[last].hasRemaining()) {
+					out.write(views, first, last - first + 1);
+				}
+			}
+			writes++;
+			file.written(batch[first].position, (int) (runEnd - batch[first].position));
+			first = last + 1;
+		}
+
+		bytesOut += batchBytes;
+		unforcedBytes += batchBytes;
+		consumed = end;
+		for (int i = 0; i < batchSize; i++) {
+			free.offer(batch[i]);
+			batch[i] = null;
+		}
+		batchSize = 0;
+		batchBytes = 0;
+		if (loopWaiting) {
+			LockSupport.unpark(loopThread);
+		}
+	}
+
+	private void view(int i) {
+		int index = (int) (batch[i].start % ringSize);
+		views[i].limit(index + batch[i].length).position(index);
+	}
+
+	private void force() throws IOException {
+		file.sync();
+		forces++;
+		unforcedBytes = 0;
+		lastForce = System.nanoTime();
+	}
+
+	/*
+	 * Loop thread only. Hands over the last extent and waits for the writer to write everything and force it if the policy
+	 * or sync says so. Throws whatever stopped the writer.
+	 */
+	public void close(boolean sync) throws IOException {
+		if (current != null) {
+			publish();
+		}
+		syncAtEnd = sync;
+		closing = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!thread.isAlive()) {
+			BufferPool.SHARED.release(ring);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/*
+	 * How the writes went, for the transfer's closing message
+	 */
+	public String summary() {
+		return String.format("Write behind: %d writes of %d KB on average, %d forces, waited for the disk %d times",
+				writes, writes == 0 ? 0 : bytesOut / writes / 1000, forces, stalls);
+	}
+}
@@ -0,0 +1,88 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class EventLogTest {
+
+	@Test
+	public void disabledPrintsMessagesOnly() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EventLog log = new EventLog(false, new PrintStream(bytes, true, StandardCharsets.UTF_8));
+		log.message("hello");
+		log.packet("SENDing", 1, 0, 10, "SENT");
+		log.close();
+
+		assertEquals("hello", bytes.toString(StandardCharsets.UTF_8).strip());
+	}
+
+	@Test
+	public void eventsAreFormattedInOrder() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EventLog log = new EventLog(true, new PrintStream(bytes, true, StandardCharsets.UTF_8));
+		log.message("start");
+		log.packet("SENDing", 7, 0, 500, "SENT");
+		log.ackReceived(8, "MoveWnd");
+		log.timeout(8, 200, 4);
+		log.close();
+
+		String[] lines = bytes.toString(StandardCharsets.UTF_8).split("\\R");
+		assertEquals(4, lines.length);
+		assertEquals("start", lines[0]);
+		assertTrue(lines[1].matches("SENDing 7 0:500 \\d+ SENT"), lines[1]);
+		assertEquals("AckRcvd 8 MoveWnd", lines[2]);
+		assertEquals("TIMEOUT 8 RTO 200ms CWND 4", lines[3]);
+	}
+
+	/*
+	 * Several threads race for the ring's slots while the writer drains it. Each thread's events must come out in the
+	 * order it logged them, and every event must be printed or counted as dropped.
+	 */
+	@Test
+	@Timeout(60)
+	public void concurrentProducers() throws InterruptedException {
+		final int threads = 4;
+		final int events = 200_000;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EventLog log = new EventLog(true, new PrintStream(bytes, false, StandardCharsets.UTF_8));
+
+		Thread[] producers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			producers[t] = new Thread(() -> {
+				for (int i = 0; i < events; i++) {
+					log.ackSent("ACK" + id, i, "SENT");
+				}
+			});
+			producers[t].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		log.close();
+
+		long[] next = new long[threads];
+		long printed = 0;
+		long dropped = 0;
+		for (String line : bytes.toString(StandardCharsets.UTF_8).split("\\R")) {
+			if (line.endsWith("trace events dropped, the console could not keep up")) {
+				dropped = Long.parseLong(line.substring(0, line.indexOf(' ')));
+				continue;
+			}
+			String[] fields = line.split(" ");
+			int id = fields[0].charAt(3) - '0';
+			long ackno = Long.parseLong(fields[1]);
+			assertTrue(ackno >= next[id], "ACK" + id + " " + ackno + " printed after " + (next[id] - 1));
+			next[id] = ackno + 1;
+			printed++;
+		}
+		assertEquals((long) threads * events, printed + dropped);
+	}
+}
@@ -0,0 +1,73 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class FlushPolicyTest {
+
+	private static final long MS = 1_000_000L;
+
+	@Test
+	public void namedPolicies() {
+		assertSame(FlushPolicy.NONE, FlushPolicy.parse("none"));
+		assertSame(FlushPolicy.FIN, FlushPolicy.parse(" FIN "));
+		assertFalse(FlushPolicy.NONE.forcesAtEnd());
+		assertTrue(FlushPolicy.FIN.forcesAtEnd());
+		assertFalse(FlushPolicy.FIN.due(1L << 40, 1L << 40, 0));
+	}
+
+	@Test
+	public void size() {
+		FlushPolicy policy = FlushPolicy.parse("64m");
+		assertTrue(policy.forcesAtEnd());
+		assertFalse(policy.due(64L * 1024 * 1024 - 1, 1L << 40, 0));
+		assertTrue(policy.due(64L * 1024 * 1024, 0, 0));
+		assertEquals(0, policy.maxWait(0));
+
+		assertTrue(FlushPolicy.parse("2k").due(2048, 0, 0));
+		assertFalse(FlushPolicy.parse("1g").due(1024L * 1024 * 1024 - 1, 0, 0));
+		assertTrue(FlushPolicy.parse("100").due(100, 0, 0));
+	}
+
+	@Test
+	public void interval() {
+		FlushPolicy policy = FlushPolicy.parse("500ms");
+		assertFalse(policy.due(1, 499 * MS, 0));
+		assertTrue(policy.due(1, 500 * MS, 0));
+		assertFalse(policy.due(0, 500 * MS, 0));
+		assertEquals(500 * MS, policy.maxWait(0));
+		assertEquals(100 * MS, policy.maxWait(100 * MS));
+	}
+
+	@Test
+	public void sizeAndInterval() {
+		FlushPolicy policy = FlushPolicy.parse("64m, 500ms");
+		assertTrue(policy.due(64L * 1024 * 1024, 0, 0));
+		assertTrue(policy.due(1, 500 * MS, 0));
+		assertFalse(policy.due(1, 1, 0));
+		assertEquals("64m, 500ms", policy.toString());
+	}
+
+	/*
+	 * A caller's own limit applies whatever the policy
+	 */
+	@Test
+	public void minInterval() {
+		assertTrue(FlushPolicy.NONE.due(1, 200 * MS, 200 * MS));
+		assertEquals(200 * MS, FlushPolicy.NONE.maxWait(200 * MS));
+	}
+
+	@Test
+	public void badSpecs() {
+		assertThrows(IllegalArgumentException.class, () -> FlushPolicy.parse("0ms"));
+		assertThrows(IllegalArgumentException.class, () -> FlushPolicy.parse("0"));
+		assertThrows(IllegalArgumentException.class, () -> FlushPolicy.parse("often"));
+		assertThrows(IllegalArgumentException.class, () -> FlushPolicy.parse("64x"));
+		assertThrows(IllegalArgumentException.class, () -> FlushPolicy.parse("-5k"));
+	}
+}
@@ -0,0 +1,76 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ImpairmentTest {
+
+	private static final long MS = 1_000_000L;
+
+	@Test
+	public void dropPercentageIsSplitBetweenDropAndCorrupt() {
+		Impairment impairment = Impairment.parse(null, 10);
+		assertEquals(0.05, impairment.getDrop(), 1e-12);
+		assertEquals(0.05, impairment.getCorrupt(), 1e-12);
+		assertFalse(impairment.delays());
+
+		Impairment empty = Impairment.parse("", 0);
+		assertEquals(0, empty.getDrop());
+		assertEquals(0, empty.getCorrupt());
+	}
+
+	@Test
+	public void everyKey() {
+		Impairment impairment = Impairment.parse(
+				"drop=1, corrupt=0.5,dup=2,reorder=3,delay=20,jitter=5,burst=1:30,rate=10m,SEED=7", 40);
+		assertEquals(0.01, impairment.getDrop(), 1e-12);
+		assertEquals(0.005, impairment.getCorrupt(), 1e-12);
+		assertEquals(0.02, impairment.getDuplicate(), 1e-12);
+		assertEquals(0.03, impairment.getReorder(), 1e-12);
+		assertEquals(20 * MS, impairment.getDelay());
+		assertEquals(5 * MS, impairment.getJitter());
+		assertEquals(0.01, impairment.getBurstEnter(), 1e-12);
+		assertEquals(0.3, impairment.getBurstExit(), 1e-12);
+		assertEquals(1, impairment.getBurstLoss());
+		assertEquals(10_000_000 / 8, impairment.getRate());
+		assertEquals(7, impairment.getSeed());
+		assertTrue(impairment.delays());
+	}
+
+	@Test
+	public void burstLossAndRates() {
+		assertEquals(0.5, Impairment.parse("burst=1:30:50", 0).getBurstLoss(), 1e-12);
+		assertEquals(1_500_000 / 8, Impairment.parse("rate=1.5M", 0).getRate());
+		assertEquals(125, Impairment.parse("rate=1k", 0).getRate());
+		assertEquals(125_000_000, Impairment.parse("rate=1g", 0).getRate());
+		assertTrue(Impairment.parse("reorder=1", 0).delays());
+	}
+
+	/*
+	 * The default drop and corrupt can be overridden one at a time
+	 */
+	@Test
+	public void keysOverrideTheDropPercentage() {
+		Impairment impairment = Impairment.parse("corrupt=0", 20);
+		assertEquals(0.1, impairment.getDrop(), 1e-12);
+		assertEquals(0, impairment.getCorrupt());
+	}
+
+	@Test
+	public void badSpecs() {
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("drop", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("loss=5", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("drop=101", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("drop=-1", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("drop=60,corrupt=50", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("delay=-3", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("burst=1", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("burst=1:2:3:4", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("rate=7", 0));
+		assertThrows(IllegalArgumentException.class, () -> Impairment.parse("seed=x", 0));
+	}
+}
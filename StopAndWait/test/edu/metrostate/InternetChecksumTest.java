@@ -0,0 +1,71 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class InternetChecksumTest {
+
+	/*
+	 * The worked example of RFC 1071 section 3, whose sum is ddf2
+	 */
+	private static final byte[] RFC_1071 = { 0x00, 0x01, (byte) 0xf2, 0x03, (byte) 0xf4, (byte) 0xf5, (byte) 0xf6, (byte) 0xf7 };
+
+	private static long checksum(byte[] data) {
+		InternetChecksum checksum = new InternetChecksum();
+		checksum.update(data, 0, data.length);
+		return checksum.getValue();
+	}
+
+	@Test
+	public void rfc1071Example() {
+		assertEquals(~0xddf2 & 0xFFFF, checksum(RFC_1071));
+	}
+
+	@Test
+	public void emptyAndOddLengths() {
+		assertEquals(0xFFFF, checksum(new byte[0]));
+		assertEquals(~0xab00 & 0xFFFF, checksum(new byte[] { (byte) 0xab }));
+		assertEquals(~(0x0102 + 0x0300) & 0xFFFF, checksum(new byte[] { 1, 2, 3 }));
+	}
+
+	/*
+	 * The sum carries out of 16 bits many times over and must be folded back in
+	 */
+	@Test
+	public void carriesAreFolded() {
+		byte[] ones = new byte[100_000];
+		java.util.Arrays.fill(ones, (byte) 0xFF);
+		assertEquals(0, checksum(ones));
+	}
+
+	/*
+	 * However the data is split and whichever way it is fed in, the result is the same
+	 */
+	@Test
+	public void anySplitGivesTheSameValue() {
+		byte[] data = new byte[1001];
+		new Random(11).nextBytes(data);
+		long whole = checksum(data);
+
+		InternetChecksum checksum = new InternetChecksum();
+		for (int split = 0; split <= data.length; split += 37) {
+			checksum.reset();
+			checksum.update(data, 0, split);
+			checksum.update(data, split, data.length - split);
+			assertEquals(whole, checksum.getValue(), "split at " + split);
+
+			checksum.reset();
+			ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+			checksum.update(direct.limit(split));
+			for (int i = split; i < data.length; i++) {
+				checksum.update(data[i]);
+			}
+			assertEquals(whole, checksum.getValue(), "direct split at " + split);
+			assertEquals(split, direct.position());
+		}
+	}
+}
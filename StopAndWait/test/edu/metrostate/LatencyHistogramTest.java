@@ -0,0 +1,60 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.percentile(0.5));
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 8; i++) {
+			histogram.record(i);
+		}
+		histogram.record(-5);
+		assertEquals(9, histogram.getCount());
+		assertEquals(0, histogram.percentile(0.2));
+		assertEquals(3, histogram.percentile(0.5));
+		assertEquals(7, histogram.percentile(1));
+	}
+
+	/*
+	 * Each percentile is rounded up to the end of its bucket, so it is never below the true value and at most an eighth above it
+	 */
+	@Test
+	public void percentilesAreWithinAnEighth() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 100_000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(100_000, histogram.getCount());
+		assertEquals(100_000_000L, histogram.getMax());
+
+		for (double fraction : new double[] { 0.01, 0.5, 0.9, 0.99, 0.999 }) {
+			long exact = (long) Math.ceil(fraction * 100_000) * 1000;
+			long reported = histogram.percentile(fraction);
+			assertTrue(reported >= exact && reported <= exact + exact / 8, fraction + ": " + reported + " for " + exact);
+		}
+		assertEquals(100_000_000L, histogram.percentile(1));
+	}
+
+	@Test
+	public void largestValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(1L << 62);
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertEquals(Long.MAX_VALUE, histogram.percentile(1));
+		assertTrue(histogram.percentile(0.5) >= 1L << 62);
+	}
+}
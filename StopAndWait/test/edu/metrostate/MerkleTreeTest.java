@@ -0,0 +1,136 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The sender hashes its range in order, the receiver leaf by leaf as the bytes come in; both must reach the same root
+ */
+public class MerkleTreeTest {
+
+	private static final int MB = 1024 * 1024;
+	private static final long START = 100;
+	private static final long END = START + 3 * MB + 12345;
+
+	@TempDir
+	Path dir;
+
+	private byte[] data;
+	private File file;
+
+	@BeforeEach
+	public void writeFile() throws IOException {
+		data = new byte[(int) END + 77];
+		new Random(7).nextBytes(data);
+		file = dir.resolve("data.bin").toFile();
+		Files.write(file.toPath(), data);
+	}
+
+	private MerkleTree sent() throws IOException {
+		MerkleTree tree = new MerkleTree(START, END, false);
+		try (MappedFileReader reader = new MappedFileReader(file)) {
+			for (long read = START; !tree.isHashed(); read += 64 * 1024) {
+				tree.hash(reader, read, 96 * 1024);
+			}
+		}
+		return tree;
+	}
+
+	/*
+	 * Hashes the leaves the receiver has been credited in full, from data, the way its writer reads them back
+	 */
+	private void hashPending(MerkleTree tree, byte[] contents) {
+		for (int leaf = tree.nextPending(); leaf >= 0; leaf = tree.nextPending()) {
+			MessageDigest md = MerkleTree.newLeaf();
+			int from = (int) tree.leafStart(leaf);
+			md.update(contents, from, (int) tree.leafEnd(leaf) - from);
+			tree.setLeaf(leaf, md.digest());
+		}
+	}
+
+	@Test
+	public void shapeFollowsTheRange() {
+		MerkleTree tree = new MerkleTree(START, END, false);
+		assertEquals(4, tree.getNodes(0));
+		assertEquals(1, tree.getTop());
+		assertEquals(START + MB, tree.leafEnd(0));
+		assertEquals(END, tree.leafEnd(3));
+
+		MerkleTree deep = new MerkleTree(0, 40L * MB, false);
+		assertEquals(40, deep.getNodes(0));
+		assertEquals(3, deep.getNodes(1));
+		assertEquals(2, deep.getTop());
+
+		MerkleTree huge = new MerkleTree(0, 1L << 40, false);
+		assertTrue(huge.getNodes(0) <= 65536);
+	}
+
+	@Test
+	public void emptyRangeHasARoot() {
+		assertNotNull(new MerkleTree(10, 10, true).root());
+	}
+
+	@Test
+	public void receiverInAnyOrderMatchesSender() throws IOException {
+		byte[] root = sent().root();
+		assertNotNull(root);
+
+		MerkleTree received = new MerkleTree(START, END, true);
+		int chunk = 50_000;
+		for (long position = END - chunk; position > START - chunk; position -= chunk) {
+			long from = Math.max(START, position);
+			assertNull(received.root());
+			received.credit(from, Math.min(END, position + chunk) - from);
+			hashPending(received, data);
+		}
+		assertArrayEquals(root, received.root());
+	}
+
+	@Test
+	public void mismatchedLeavesAreFoundAndReset() throws IOException {
+		MerkleTree sender = sent();
+		byte[] corrupt = data.clone();
+		corrupt[(int) START + 2 * MB + 5] ^= 1;
+
+		MerkleTree receiver = new MerkleTree(START, END, true);
+		receiver.credit(START, END - START);
+		hashPending(receiver, corrupt);
+		assertFalse(java.util.Arrays.equals(sender.root(), receiver.root()));
+
+		ByteBuffer digests = ByteBuffer.allocate(4 * MerkleTree.HASH_SIZE);
+		sender.copyTo(0, 0, 4, digests, 0);
+		assertEquals(0b100L, receiver.mismatches(0, 0, 4, digests, 0));
+		assertNull(receiver.root());
+
+		//The leaf is written again, whole, and hashed from the right data
+		receiver.credit(receiver.leafStart(2), receiver.leafEnd(2) - receiver.leafStart(2));
+		hashPending(receiver, data);
+		assertArrayEquals(sender.root(), receiver.root());
+		assertEquals(0L, receiver.mismatches(0, 0, 4, digests, 0));
+	}
+
+	@Test
+	public void mismatchesIgnoresNodesOutsideTheTree() throws IOException {
+		MerkleTree sender = sent();
+		ByteBuffer digests = ByteBuffer.allocate(8 * MerkleTree.HASH_SIZE);
+		assertEquals(0L, sender.mismatches(5, 0, 1, digests, 0));
+		assertEquals(0L, sender.mismatches(0, 9, 8, digests, 0));
+		assertEquals(0L, sender.mismatches(0, 0, 65, digests, 0));
+	}
+}
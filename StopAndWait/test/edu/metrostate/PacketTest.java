@@ -0,0 +1,101 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The 64 bit seqnos carried as their low 32 bits, and the checksum that guards every packet
+ */
+public class PacketTest {
+
+	private static final long WRAP = 1L << 32;
+
+	@Test
+	public void unwrapNearExpected() {
+		assertEquals(0, Packet.unwrap(0, 0));
+		assertEquals(10, Packet.unwrap(10, 3));
+		assertEquals(3, Packet.unwrap(3, 10));
+		assertEquals(WRAP + 7, Packet.unwrap(7, WRAP + 7));
+	}
+
+	@Test
+	public void unwrapAheadAcrossTheWrap() {
+		assertEquals(WRAP + 5, Packet.unwrap((int) (WRAP + 5), WRAP - 16));
+		assertEquals(3 * WRAP + 1, Packet.unwrap(1, 3 * WRAP - 1));
+	}
+
+	@Test
+	public void unwrapBehindAcrossTheWrap() {
+		assertEquals(WRAP - 2, Packet.unwrap((int) (WRAP - 2), WRAP + 2));
+		assertEquals(5 * WRAP - 1, Packet.unwrap(-1, 5 * WRAP));
+	}
+
+	@Test
+	public void unwrapUpToHalfTheSeqnoSpaceAway() {
+		long expected = 7 * WRAP + 100;
+		long ahead = expected + Integer.MAX_VALUE;
+		long behind = expected - Integer.MAX_VALUE - 1;
+		assertEquals(ahead, Packet.unwrap((int) ahead, expected));
+		assertEquals(behind, Packet.unwrap((int) behind, expected));
+	}
+
+	@Test
+	public void dataSeqnoAndOffsetPastTheWrap() {
+		Packet packet = new Packet(new byte[Packet.HEADER_SIZE + 16], ChecksumType.CRC32C);
+		long seqno = 2 * WRAP + 3;
+		long offset = 40L * 1024 * 1024 * 1024;
+		packet.packData(9, seqno, offset, 16);
+
+		assertTrue(packet.isValidPacket(Packet.HEADER_SIZE + 16));
+		assertEquals(Packet.DATA, packet.getType());
+		assertEquals(9, packet.getSession());
+		assertEquals(3, packet.getSeqno());
+		assertEquals(seqno, packet.getSeqno(2 * WRAP - 10));
+		assertEquals(seqno, packet.getSeqno(2 * WRAP + 50));
+		assertEquals(offset, packet.getOffset());
+	}
+
+	@Test
+	public void ackPastTheWrap() {
+		long ackno = WRAP + 1;
+		Packet ack = new Packet(4, ackno, 0b101L);
+
+		assertTrue(ack.isValidPacket(Packet.ACK_SIZE));
+		assertEquals(Packet.ACK, ack.getType());
+		assertEquals(ackno, ack.getAckno(WRAP - 1));
+		assertEquals(0b101L, ack.getSack());
+	}
+
+	@Test
+	public void everyChecksumCatchesAFlippedBit() {
+		SplittableRandom random = new SplittableRandom(42);
+		for (ChecksumType type : ChecksumType.values()) {
+			Packet packet = new Packet(ByteBuffer.allocateDirect(Packet.HEADER_SIZE + 100), type);
+			for (int i = 0; i < 100; i++) {
+				packet.getBuffer().put(Packet.HEADER_SIZE + i, (byte) i);
+			}
+			packet.packData(1, 77, 0, 100);
+			for (int i = 0; i < 200; i++) {
+				packet.error(random);
+				assertFalse(packet.isValidPacket(Packet.HEADER_SIZE + 100), type.toString());
+				packet.fixError();
+				assertTrue(packet.isValidPacket(Packet.HEADER_SIZE + 100), type.toString());
+			}
+		}
+	}
+
+	@Test
+	public void lengthMustMatchWhatWasReceived() {
+		Packet packet = new Packet(new byte[Packet.HEADER_SIZE + 10], ChecksumType.CRC32C);
+		packet.packData(1, 0, 0, 10);
+		assertFalse(packet.isValidPacket(Packet.HEADER_SIZE + 9));
+		assertFalse(packet.isValidPacket(Packet.FIN_SIZE - 1));
+		assertTrue(packet.isValidPacket(Packet.HEADER_SIZE + 10));
+	}
+}
@@ -0,0 +1,111 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ParityGroupTest {
+
+	private static final int MAX_PAYLOAD = 1000;
+	private static final int OFFSET = Packet.HEADER_SIZE;
+
+	private static ByteBuffer payload(Random random, int length) {
+		byte[] bytes = new byte[OFFSET + length];
+		random.nextBytes(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/*
+	 * Builds the parity of the payloads the way the sender does, then drops each one in turn and rebuilds it
+	 * the way the receiver does, odd lengths and a shorter last packet included
+	 */
+	@Test
+	public void rebuildsAnyOneMissingPayload() {
+		Random random = new Random(3);
+		int[] lengths = { 1000, 997, 1000, 13 };
+		ByteBuffer[] payloads = new ByteBuffer[lengths.length];
+		for (int i = 0; i < lengths.length; i++) {
+			payloads[i] = payload(random, lengths[i]);
+		}
+
+		ParityGroup sender = new ParityGroup(MAX_PAYLOAD);
+		sender.reset(5);
+		for (int i = 0; i < lengths.length; i++) {
+			sender.add(payloads[i], OFFSET, lengths[i]);
+		}
+		ByteBuffer parity = ByteBuffer.allocate(OFFSET + MAX_PAYLOAD);
+		sender.copyTo(parity, OFFSET);
+		assertEquals(1000, sender.getMaxLength());
+
+		ParityGroup receiver = new ParityGroup(MAX_PAYLOAD);
+		for (int missing = 0; missing < lengths.length; missing++) {
+			receiver.reset(5);
+			for (int i = 0; i < lengths.length; i++) {
+				if (i != missing) {
+					receiver.add(payloads[i], OFFSET, lengths[i]);
+				}
+			}
+			assertFalse(receiver.canRecover());
+			receiver.addParity(parity, OFFSET, sender.getMaxLength(), sender.getLengths(), 20, lengths.length);
+			assertTrue(receiver.canRecover());
+
+			ByteBuffer rebuilt = receiver.getMissing();
+			assertEquals(lengths[missing], rebuilt.remaining());
+			assertEquals(payloads[missing].slice(OFFSET, lengths[missing]), rebuilt);
+			receiver.setDone();
+			assertFalse(receiver.canRecover());
+		}
+		sender.close();
+		receiver.close();
+	}
+
+	@Test
+	public void twoMissingCantBeRebuilt() {
+		Random random = new Random(4);
+		ByteBuffer a = payload(random, 100);
+		ByteBuffer b = payload(random, 100);
+		ByteBuffer c = payload(random, 100);
+
+		ParityGroup sender = new ParityGroup(MAX_PAYLOAD);
+		sender.reset(0);
+		sender.add(a, OFFSET, 100);
+		sender.add(b, OFFSET, 100);
+		sender.add(c, OFFSET, 100);
+		ByteBuffer parity = ByteBuffer.allocate(OFFSET + MAX_PAYLOAD);
+		sender.copyTo(parity, OFFSET);
+
+		ParityGroup receiver = new ParityGroup(MAX_PAYLOAD);
+		receiver.reset(0);
+		receiver.add(a, OFFSET, 100);
+		receiver.addParity(parity, OFFSET, 100, sender.getLengths(), 0, 3);
+		assertFalse(receiver.canRecover());
+		sender.close();
+		receiver.close();
+	}
+
+	/*
+	 * A group reused from the pool or after a longer group must start from zeros
+	 */
+	@Test
+	public void resetClearsThePreviousGroup() {
+		Random random = new Random(5);
+		ParityGroup group = new ParityGroup(MAX_PAYLOAD);
+		group.reset(0);
+		group.add(payload(random, 800), OFFSET, 800);
+		group.reset(1);
+		ByteBuffer only = payload(random, 40);
+		group.add(only, OFFSET, 40);
+
+		ByteBuffer parity = ByteBuffer.allocate(MAX_PAYLOAD);
+		group.copyTo(parity, 0);
+		assertEquals(40, group.getMaxLength());
+		assertEquals(only.slice(OFFSET, 40), parity.slice(0, 40));
+		assertEquals(1, group.getGroup());
+		group.close();
+	}
+}
@@ -0,0 +1,105 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class SpscQueueTest {
+
+	@Test
+	public void capacityIsRoundedUpToAPowerOfTwo() {
+		assertEquals(8, new SpscQueue<Integer>(5).capacity());
+		assertEquals(8, new SpscQueue<Integer>(8).capacity());
+		assertEquals(16, new SpscQueue<Integer>(9).capacity());
+	}
+
+	@Test
+	public void fullAndEmptyAreReported() {
+		SpscQueue<Integer> queue = new SpscQueue<>(4);
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(4));
+		assertFalse(queue.isEmpty());
+
+		assertEquals(0, queue.poll());
+		assertTrue(queue.offer(4));
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(i, queue.poll());
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	/*
+	 * Head and tail run many times round the ring
+	 */
+	@Test
+	public void staysInOrderAroundTheRing() {
+		SpscQueue<Integer> queue = new SpscQueue<>(8);
+		int next = 0;
+		int expected = 0;
+		for (int round = 0; round < 1000; round++) {
+			for (int i = 0; i < 5; i++) {
+				assertTrue(queue.offer(next++));
+			}
+			for (int i = 0; i < 5; i++) {
+				assertEquals(expected++, queue.poll());
+			}
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	/*
+	 * One producer and one consumer on their own threads, on a small ring so both the full and the empty case come up
+	 * all the time. Every item must arrive once, in order. They yield rather than spin, in case there is only one core.
+	 */
+	@Test
+	@Timeout(60)
+	public void producerAndConsumerThreads() throws InterruptedException {
+		final int items = 1_000_000;
+		SpscQueue<Integer> queue = new SpscQueue<>(16);
+		AtomicReference<String> failure = new AtomicReference<>();
+
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < items; i++) {
+				Integer item = i;
+				while (!queue.offer(item)) {
+					if (failure.get() != null) {
+						return;
+					}
+					Thread.yield();
+				}
+			}
+		}, "producer");
+		Thread consumer = new Thread(() -> {
+			for (int expected = 0; expected < items; expected++) {
+				Integer item;
+				while ((item = queue.poll()) == null) {
+					Thread.yield();
+				}
+				if (item != expected) {
+					failure.set("Expected " + expected + " but polled " + item);
+					return;
+				}
+			}
+		}, "consumer");
+
+		producer.start();
+		consumer.start();
+		producer.join();
+		consumer.join();
+
+		assertNull(failure.get());
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,114 @@
+package edu.metrostate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Deadlines are offsets from the wheel's creation, since it starts at the current System.nanoTime() tick
+ */
+public class TimerWheelTest {
+
+	private static final long TICK = 1_000_000L;
+
+	private final TimerWheel wheel = new TimerWheel(TICK, 16);
+	private final long now = System.nanoTime();
+	private final List<String> fired = new ArrayList<>();
+
+	private TimerWheel.Timeout timeout(String name) {
+		return new TimerWheel.Timeout(() -> fired.add(name));
+	}
+
+	@Test
+	public void firesOnlyWhatIsDue() {
+		wheel.schedule(timeout("a"), now + 3 * TICK);
+		wheel.schedule(timeout("b"), now + 5 * TICK);
+		assertEquals(2, wheel.size());
+
+		wheel.expire(now + 2 * TICK);
+		assertTrue(fired.isEmpty());
+		wheel.expire(now + 3 * TICK);
+		assertEquals(List.of("a"), fired);
+		wheel.expire(now + 10 * TICK);
+		assertEquals(List.of("a", "b"), fired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void cancelAndReschedule() {
+		TimerWheel.Timeout a = timeout("a");
+		TimerWheel.Timeout b = timeout("b");
+		wheel.schedule(a, now + 2 * TICK);
+		wheel.schedule(b, now + 2 * TICK);
+		wheel.cancel(a);
+		assertFalse(a.isScheduled());
+		wheel.cancel(a);
+		assertEquals(1, wheel.size());
+
+		wheel.schedule(b, now + 6 * TICK);
+		assertEquals(1, wheel.size());
+		assertEquals(now + 6 * TICK, b.getDeadline());
+
+		wheel.expire(now + 4 * TICK);
+		assertTrue(fired.isEmpty());
+		wheel.expire(now + 6 * TICK);
+		assertEquals(List.of("b"), fired);
+		assertFalse(b.isScheduled());
+	}
+
+	/*
+	 * A deadline more than one turn away shares a bucket with nearer ones and has to wait for its own turn
+	 */
+	@Test
+	public void deadlinesBeyondOneTurn() {
+		wheel.schedule(timeout("far"), now + 20 * TICK);
+		wheel.schedule(timeout("near"), now + 4 * TICK);
+
+		wheel.expire(now + 5 * TICK);
+		assertEquals(List.of("near"), fired);
+		wheel.expire(now + 19 * TICK);
+		assertEquals(List.of("near"), fired);
+		wheel.expire(now + 21 * TICK);
+		assertEquals(List.of("near", "far"), fired);
+	}
+
+	@Test
+	public void pastDeadlinesFireAtTheNextExpire() {
+		wheel.schedule(timeout("late"), now - 50 * TICK);
+		assertEquals(0, wheel.nanosToNextExpiry(now));
+		wheel.expire(now);
+		assertEquals(List.of("late"), fired);
+	}
+
+	@Test
+	public void tasksMayRescheduleThemselves() {
+		int[] runs = new int[1];
+		TimerWheel.Timeout[] self = new TimerWheel.Timeout[1];
+		self[0] = new TimerWheel.Timeout(() -> {
+			if (++runs[0] < 3) {
+				wheel.schedule(self[0], self[0].getDeadline() + TICK);
+			}
+		});
+		wheel.schedule(self[0], now + TICK);
+
+		for (int i = 1; i <= 5; i++) {
+			wheel.expire(now + i * TICK);
+		}
+		assertEquals(3, runs[0]);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void nanosToNextExpiry() {
+		assertEquals(-1, wheel.nanosToNextExpiry(now));
+		wheel.schedule(timeout("a"), now + 7 * TICK);
+		wheel.schedule(timeout("b"), now + 3 * TICK + 500);
+		assertEquals(3 * TICK + 500, wheel.nanosToNextExpiry(now));
+		assertEquals(0, wheel.nanosToNextExpiry(now + 4 * TICK));
+	}
+}